@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.lineageos.updater.controller.UpdaterController;
+import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.misc.BinaryManifest;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.ManifestDiff;
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.misc.Tracer;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Downloads and processes the updates list. There's at most one check in flight:
+ * requests made while a check is running join it and get the same result.
+ */
+class UpdateCheckWorker {
+
+    private static final String TAG = "UpdateCheckWorker";
+
+    private static UpdateCheckWorker sInstance;
+
+    interface Listener {
+        /**
+         * Called on the main thread once the check is over
+         */
+        void onCheckCompleted(Result result);
+    }
+
+    static final class Result {
+        boolean success;
+        boolean cancelled;
+        boolean newUpdates;
+        List<UpdateInfo> updates = Collections.emptyList();
+        ManifestDiff diff;
+        // Delay requested by the server before the next check, or -1
+        long retryAfterMillis = -1;
+        long minCheckIntervalMillis = 0;
+
+        long fetchMillis;
+        long parseMillis;
+        long diffMillis;
+        long mergeMillis;
+
+        private String getTimings() {
+            return "fetch=" + fetchMillis + "ms parse=" + parseMillis + "ms diff=" +
+                    diffMillis + "ms merge=" + mergeMillis + "ms";
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Listener> mListeners = new ArrayList<>();
+    private DownloadClient mDownloadClient;
+    private boolean mInFlight = false;
+    private volatile boolean mCancelled = false;
+
+    static synchronized UpdateCheckWorker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdateCheckWorker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UpdateCheckWorker(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Check for updates, or join the check in progress
+     */
+    synchronized void check(Listener listener) {
+        mListeners.add(listener);
+        if (mInFlight) {
+            Log.d(TAG, "Joining the check in progress");
+            return;
+        }
+        mInFlight = true;
+        mCancelled = false;
+        startFetch();
+    }
+
+    synchronized boolean isChecking() {
+        return mInFlight;
+    }
+
+    /**
+     * Stop waiting for the result of a check, the check itself goes on
+     */
+    synchronized void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Stop waiting for the result of a check, the listener isn't called. The
+     * check is cancelled if nobody else is waiting for it.
+     */
+    synchronized void cancel(Listener listener) {
+        mListeners.remove(listener);
+        if (!mInFlight || !mListeners.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Cancelling update check");
+        mCancelled = true;
+        if (mDownloadClient != null) {
+            mDownloadClient.cancel();
+        }
+    }
+
+    private void startFetch() {
+        final Result result = new Result();
+        final File json = Utils.getCachedUpdateList(mContext);
+        final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
+        final long fetchStart = SystemClock.elapsedRealtime();
+        Tracer.beginStage(null, Tracer.STAGE_CHECK);
+        String url = Utils.getServerURL(mContext);
+        Log.d(TAG, "Checking " + url);
+
+        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            @Override
+            public void onResponse(int statusCode, String url,
+                    DownloadClient.Headers headers) {
+                if (statusCode == 429 || statusCode == 503) {
+                    result.retryAfterMillis =
+                            UpdatesCheckReceiver.parseRetryAfter(headers.get("Retry-After"));
+                }
+            }
+
+            @Override
+            public void onSuccess(File destination) {
+                result.fetchMillis = SystemClock.elapsedRealtime() - fetchStart;
+                processList(result, json, jsonNew);
+            }
+
+            @Override
+            public void onFailure(boolean cancelled) {
+                Log.e(TAG, "Could not download updates list");
+                result.fetchMillis = SystemClock.elapsedRealtime() - fetchStart;
+                result.cancelled = cancelled || mCancelled;
+                jsonNew.delete();
+                finish(result);
+            }
+        };
+
+        try {
+            mDownloadClient = new DownloadClient.Builder()
+                    .setUrl(url)
+                    .setDestination(jsonNew)
+                    .setDownloadCallback(callback)
+                    // The list is saved compressed and decoded while parsing
+                    .setRequestHeader("Accept-Encoding", "gzip")
+                    .setRequestHeader("Accept",
+                            BinaryManifest.MIME_TYPE + ", application/json;q=0.9")
+                    .build();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not build download client", e);
+            mMainHandler.post(() -> finish(result));
+            return;
+        }
+        mDownloadClient.start();
+    }
+
+    // Called on the download thread
+    private void processList(final Result result, File json, File jsonNew) {
+        try {
+            Metrics.getInstance().gauge(Metrics.MANIFEST_SIZE_BYTES).set(jsonNew.length());
+            long start = SystemClock.elapsedRealtime();
+            result.updates = Utils.parseJson(jsonNew, true, mContext);
+            result.minCheckIntervalMillis = Utils.getMinCheckInterval(jsonNew);
+            File fingerprintsFile = Utils.getCachedUpdateFingerprints(mContext);
+            Map<String, Long> previous = ManifestDiff.readFingerprints(fingerprintsFile);
+            if (previous == null && json.exists()) {
+                // No fingerprints yet, e.g. right after an upgrade
+                previous = ManifestDiff.getFingerprints(Utils.parseJson(json, true, mContext));
+            }
+            result.parseMillis = SystemClock.elapsedRealtime() - start;
+            Metrics.getInstance().histogram(Metrics.PARSE_TIME_MS).record(result.parseMillis);
+            if (mCancelled) {
+                throw new IOException("Cancelled");
+            }
+
+            start = SystemClock.elapsedRealtime();
+            result.diff = ManifestDiff.compute(previous, result.updates);
+            result.newUpdates = result.diff.hasNewUpdates();
+            result.diffMillis = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Updates list diff: " + result.diff);
+
+            jsonNew.renameTo(json);
+            result.diff.writeFingerprints(fingerprintsFile);
+            result.success = true;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not process updates list", e);
+            result.cancelled = mCancelled;
+            jsonNew.delete();
+        }
+        // The controller must be accessed from the main thread
+        mMainHandler.post(() -> {
+            if (result.success) {
+                merge(result);
+            }
+            finish(result);
+        });
+    }
+
+    private void merge(Result result) {
+        UpdaterController controller = UpdaterController.getInstance();
+        if (controller == null) {
+            // The list is loaded from the cache once the service starts
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        for (UpdateInfo update : result.updates) {
+            if (result.diff.isUnchanged(update.getDownloadId()) &&
+                    controller.getUpdate(update.getDownloadId()) != null) {
+                continue;
+            }
+            controller.addUpdate(update);
+        }
+        controller.setUpdatesAvailableOnline(result.diff.getIds(), true);
+        result.mergeMillis = SystemClock.elapsedRealtime() - start;
+    }
+
+    private void finish(Result result) {
+        if (result.retryAfterMillis > 0) {
+            Log.d(TAG, "Server asked to retry in " + result.retryAfterMillis + " ms");
+            UpdatesCheckReceiver.setNextCheckNotBefore(mContext, result.retryAfterMillis);
+        }
+        if (result.success) {
+            if (result.minCheckIntervalMillis > 0) {
+                UpdatesCheckReceiver.setNextCheckNotBefore(mContext,
+                        result.minCheckIntervalMillis);
+            }
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+            preferences.edit()
+                    .putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis())
+                    .apply();
+            // In case we set a one-shot check because of a previous failure
+            UpdatesCheckReceiver.cancelUpdatesCheck(mContext);
+        }
+        if (result.success) {
+            Metrics.getInstance().histogram(Metrics.CHECK_LATENCY_MS).record(result.fetchMillis +
+                    result.parseMillis + result.diffMillis + result.mergeMillis);
+        } else if (!result.cancelled) {
+            Metrics.getInstance().counter(Metrics.CHECK_FAILURES).increment();
+        }
+        Tracer.endStage(null, Tracer.STAGE_CHECK);
+        Log.d(TAG, "Update check " + (result.success ? "completed" :
+                result.cancelled ? "cancelled" : "failed") + ", " + result.getTimings());
+
+        List<Listener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+            mDownloadClient = null;
+            mInFlight = false;
+        }
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mMainHandler.post(() -> notifyListeners(listeners, result));
+        } else {
+            notifyListeners(listeners, result);
+        }
+    }
+
+    private static void notifyListeners(List<Listener> listeners, Result result) {
+        for (Listener listener : listeners) {
+            listener.onCheckCompleted(result);
+        }
+    }
+}
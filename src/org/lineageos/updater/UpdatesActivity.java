@@ -61,7 +61,6 @@ import com.google.android.material.snackbar.Snackbar;
 import org.json.JSONException;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
-import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.StringGenerator;
@@ -74,9 +73,10 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.Set;
 
 import static com.google.android.material.snackbar.Snackbar.LENGTH_SHORT;
 
@@ -87,6 +87,7 @@ public class UpdatesActivity extends UpdatesListActivity {
     private BroadcastReceiver mBroadcastReceiver;
 
     private UpdatesListAdapter mAdapter;
+    private UpdateCheckWorker.Listener mUpdateCheckListener;
 
     private View mUpdateButton;
 
@@ -226,6 +227,16 @@ public class UpdatesActivity extends UpdatesListActivity {
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mUpdateCheckListener != null) {
+            // Let the check go on, the result is shared with other callers
+            UpdateCheckWorker.getInstance(this).removeListener(mUpdateCheckListener);
+            mUpdateCheckListener = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_toolbar, menu);
@@ -256,7 +267,10 @@ public class UpdatesActivity extends UpdatesListActivity {
                 IBinder service) {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
-            mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            // The user is in charge now, let them resume at full speed
+            controller.stopPrefetch();
+            mAdapter.setUpdaterController(controller);
             getUpdatesList();
         }
 
@@ -268,19 +282,25 @@ public class UpdatesActivity extends UpdatesListActivity {
         }
     };
 
-    private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
+    private void loadUpdatesList(File jsonFile) throws IOException, JSONException {
         Log.d(TAG, "Adding remote updates");
         UpdaterController controller = mUpdaterService.getUpdaterController();
-        boolean newUpdates = false;
 
         List<UpdateInfo> updates = Utils.parseJson(jsonFile, true, this);
-        List<String> updatesOnline = new ArrayList<>();
+        Set<String> updatesOnline = new HashSet<>();
         for (UpdateInfo update : updates) {
-            newUpdates |= controller.addUpdate(update);
+            controller.addUpdate(update);
             updatesOnline.add(update.getDownloadId());
         }
         controller.setUpdatesAvailableOnline(updatesOnline, true);
+        refreshUpdatesList(false);
+    }
+
+    private void refreshUpdatesList(boolean manualRefresh) {
+        if (mUpdaterService == null) {
+            return;
+        }
+        UpdaterController controller = mUpdaterService.getUpdaterController();
 
         if (manualRefresh) {
             ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_no_updates_found);
@@ -307,7 +327,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         File jsonFile = Utils.getCachedUpdateList(this);
         if (jsonFile.exists()) {
             try {
-                loadUpdatesList(jsonFile, false);
+                loadUpdatesList(jsonFile);
                 Log.d(TAG, "Cached list parsed");
             } catch (IOException | JSONException e) {
                 Log.e(TAG, "Error while parsing json list", e);
@@ -334,71 +354,26 @@ public class UpdatesActivity extends UpdatesListActivity {
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
-        try {
-            loadUpdatesList(jsonNew, manualRefresh);
-            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-            long millis = System.currentTimeMillis();
-            preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
-            updateLastCheckedString();
-            if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
-                    Utils.checkForNewUpdates(json, jsonNew, this)) {
-                UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
-            }
-            // In case we set a one-shot check because of a previous failure
-            UpdatesCheckReceiver.cancelUpdatesCheck(this);
-            jsonNew.renameTo(json);
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Could not read json", e);
-            ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_updates_check_failed);
-        }
-    }
-
     private void downloadUpdatesList(final boolean manualRefresh) {
-        final File jsonFile = Utils.getCachedUpdateList(this);
-        final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(this);
-        Log.d(TAG, "Checking " + url);
-
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
-            @Override
-            public void onFailure(final boolean cancelled) {
-                Log.e(TAG, "Could not download updates list");
-                runOnUiThread(() -> {
-                    if (!cancelled) {
-                        ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_updates_check_failed);
-                    }
-                });
-            }
-
-            @Override
-            public void onResponse(int statusCode, String url,
-                    DownloadClient.Headers headers) {
-            }
-
-            @Override
-            public void onSuccess(File destination) {
-                runOnUiThread(() -> {
-                    Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
-                });
-            }
-        };
-
-        final DownloadClient downloadClient;
-        try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonFileTmp)
-                    .setDownloadCallback(callback)
-                    .build();
-        } catch (IOException exception) {
-            Log.e(TAG, "Could not build download client");
-            ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_updates_check_failed);
+        if (mUpdateCheckListener != null) {
+            // Already waiting for a check
             return;
         }
-
-        downloadClient.start();
+        mUpdateCheckListener = result -> {
+            mUpdateCheckListener = null;
+            if (result.success) {
+                Log.d(TAG, "List downloaded");
+                // The worker merges the list in the controller if the service is running
+                refreshUpdatesList(manualRefresh);
+                updateLastCheckedString();
+                if (result.newUpdates && Utils.isUpdateCheckEnabled(this)) {
+                    UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
+                }
+            } else if (!result.cancelled) {
+                ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_updates_check_failed);
+            }
+        };
+        UpdateCheckWorker.getInstance(this).check(mUpdateCheckListener);
     }
 
     private void updateLastCheckedString() {
@@ -417,6 +392,9 @@ public class UpdatesActivity extends UpdatesListActivity {
             case PAUSED_ERROR:
                 ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_download_failed);
                 break;
+            case INSUFFICIENT_SPACE:
+                ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_download_insufficient_space);
+                break;
             case VERIFICATION_FAILED:
                 ((TextView) findViewById(R.id.header_update_status)).setText(R.string.snack_download_verification_failed);
                 break;
@@ -435,8 +413,11 @@ public class UpdatesActivity extends UpdatesListActivity {
         View view = LayoutInflater.from(this).inflate(R.layout.preferences_dialog, null);
         Spinner autoCheckInterval =
                 view.findViewById(R.id.preferences_auto_updates_check_interval);
+        Spinner packageCacheBudget = view.findViewById(R.id.preferences_package_cache_budget);
         Switch autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         Switch dataWarning = view.findViewById(R.id.preferences_mobile_data_warning);
+        Switch pipelinedInstall = view.findViewById(R.id.preferences_ab_pipelined_install);
+        Switch prefetch = view.findViewById(R.id.preferences_prefetch_updates);
         Switch updateRecovery = view.findViewById(R.id.preferences_update_recovery);
         LinearLayout updateChannel = view.findViewById(R.id.update_channel);
         EditText updateChannelText = view.findViewById(R.id.preferences_update_channel);
@@ -446,8 +427,12 @@ public class UpdatesActivity extends UpdatesListActivity {
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         autoCheckInterval.setSelection(Utils.getUpdateCheckSetting(this));
+        packageCacheBudget.setSelection(Utils.getPackageCacheSetting(this));
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
         dataWarning.setChecked(prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
+        pipelinedInstall.setChecked(prefs.getBoolean(Constants.PREF_AB_PIPELINED_INSTALL, false));
+        pipelinedInstall.setVisibility(Utils.isABDevice() ? View.VISIBLE : View.GONE);
+        prefetch.setChecked(Utils.isPrefetchEnabled(this));
 
         if (getResources().getBoolean(R.bool.config_hideRecoveryUpdate)) {
             // Hide the update feature if explicitely requested.
@@ -484,10 +469,16 @@ public class UpdatesActivity extends UpdatesListActivity {
                     prefs.edit()
                             .putInt(Constants.PREF_AUTO_UPDATES_CHECK_INTERVAL,
                                     autoCheckInterval.getSelectedItemPosition())
+                            .putInt(Constants.PREF_PACKAGE_CACHE_BUDGET,
+                                    packageCacheBudget.getSelectedItemPosition())
                             .putBoolean(Constants.PREF_AUTO_DELETE_UPDATES,
                                     autoDelete.isChecked())
                             .putBoolean(Constants.PREF_MOBILE_DATA_WARNING,
                                     dataWarning.isChecked())
+                            .putBoolean(Constants.PREF_AB_PIPELINED_INSTALL,
+                                    pipelinedInstall.isChecked())
+                            .putBoolean(Constants.PREF_PREFETCH_UPDATES,
+                                    prefetch.isChecked())
                             .apply();
 
                     if (Utils.isUpdateCheckEnabled(this)) {
@@ -497,6 +488,14 @@ public class UpdatesActivity extends UpdatesListActivity {
                         UpdatesCheckReceiver.cancelUpdatesCheck(this);
                     }
 
+                    if (!Utils.isPrefetchEnabled(this)) {
+                        UpdatesCheckReceiver.cancelPrefetch(this);
+                    }
+
+                    if (mUpdaterService != null) {
+                        mUpdaterService.getUpdaterController().trimPackageCache();
+                    }
+
                     if (Utils.isRecoveryUpdateExecPresent()) {
                         boolean enableRecoveryUpdate = updateRecovery.isChecked();
                         SystemProperties.set(Constants.UPDATE_RECOVERY_PROPERTY,
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.lineageos.updater.misc.Utils;
+
+/**
+ * Runs the automatic updates checks scheduled by UpdatesCheckReceiver.
+ */
+public class UpdatesCheckJob extends JobService {
+
+    private static final String TAG = "UpdatesCheckJob";
+
+    // The listener of each running job, the jobs can join the same check
+    private final SparseArray<UpdateCheckWorker.Listener> mListeners = new SparseArray<>();
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        if (!Utils.isUpdateCheckEnabled(this)) {
+            return false;
+        }
+        Log.d(TAG, "Checking for updates, job " + params.getJobId());
+        UpdateCheckWorker.Listener listener = UpdatesCheckReceiver.checkForUpdates(this, () -> {
+            mListeners.remove(params.getJobId());
+            jobFinished(params, false);
+            if (UpdatesCheckReceiver.isRepeatingCheckJob(params.getJobId())) {
+                // Each check is scheduled individually to get a new jitter
+                UpdatesCheckReceiver.scheduleRepeatingUpdatesCheck(this);
+            }
+        });
+        mListeners.put(params.getJobId(), listener);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The constraints are no longer met. Stop waiting for the check, it goes
+        // on if the user is waiting for it too, and run the job again later.
+        UpdateCheckWorker.Listener listener = mListeners.get(params.getJobId());
+        if (listener != null) {
+            mListeners.remove(params.getJobId());
+            UpdateCheckWorker.getInstance(this).cancel(listener);
+        }
+        return true;
+    }
+}
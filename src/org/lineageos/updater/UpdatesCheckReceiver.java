@@ -19,107 +19,121 @@ import android.app.AlarmManager;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
-import org.json.JSONException;
-import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.Utils;
 
-import java.io.File;
-import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.UUID;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
 
 public class UpdatesCheckReceiver extends BroadcastReceiver {
 
     private static final String TAG = "UpdatesCheckReceiver";
 
-    private static final String DAILY_CHECK_ACTION = "daily_check_action";
-    private static final String ONESHOT_CHECK_ACTION = "oneshot_check_action";
+    // Actions of the alarms used by older versions
+    private static final String LEGACY_DAILY_CHECK_ACTION = "daily_check_action";
+    private static final String LEGACY_ONESHOT_CHECK_ACTION = "oneshot_check_action";
+
+    private static final int REPEATING_CHECK_JOB_ID = 100;
+    private static final int ONESHOT_CHECK_JOB_ID = 101;
+    private static final int PREFETCH_JOB_ID = 102;
+
+    // Checks are spread over this fraction of the check interval
+    private static final double CHECK_JITTER_FRACTION = 0.25;
+    private static final long RETRY_DELAY_MS = AlarmManager.INTERVAL_HOUR * 2;
+    private static final long BOOT_CHECK_WINDOW_MS = AlarmManager.INTERVAL_HOUR;
+    // Don't let the server postpone checks forever
+    private static final long MAX_SERVER_DELAY_MS = AlarmManager.INTERVAL_DAY * 7;
 
     private static final String NEW_UPDATES_NOTIFICATION_CHANNEL =
             "new_updates_notification_channel";
 
+    private static final Random sRandom = new Random();
+
     @Override
     public void onReceive(final Context context, Intent intent) {
+        if (LEGACY_DAILY_CHECK_ACTION.equals(intent.getAction()) ||
+                LEGACY_ONESHOT_CHECK_ACTION.equals(intent.getAction())) {
+            // Set before an upgrade, the repeating one would fire until the next reboot
+            cancelLegacyAlarm(context, intent.getAction());
+            JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+            if (jobScheduler.getPendingJob(REPEATING_CHECK_JOB_ID) == null) {
+                scheduleRepeatingUpdatesCheck(context);
+            }
+            return;
+        }
+
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             Utils.cleanupDownloadsDir(context);
         }
 
-        final SharedPreferences preferences =
-                PreferenceManager.getDefaultSharedPreferences(context);
-
         if (!Utils.isUpdateCheckEnabled(context)) {
             return;
         }
 
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            // Set a repeating alarm on boot to check for new updates once per day
-            scheduleRepeatingUpdatesCheck(context);
+            // The repeating check is persisted, only schedule it if it's missing
+            JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+            if (jobScheduler.getPendingJob(REPEATING_CHECK_JOB_ID) == null) {
+                scheduleRepeatingUpdatesCheck(context);
+            }
+            // Devices that booted together shouldn't all check at once
+            scheduleUpdatesCheck(context, (long) (sRandom.nextDouble() * BOOT_CHECK_WINDOW_MS));
         }
+    }
 
-        if (!Utils.isNetworkAvailable(context)) {
-            Log.d(TAG, "Network not available, scheduling new check");
-            scheduleUpdatesCheck(context);
-            return;
+    private static void cancelLegacyAlarm(Context context, String action) {
+        Intent intent = new Intent(context, UpdatesCheckReceiver.class);
+        intent.setAction(action);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE);
+        if (pendingIntent != null) {
+            AlarmManager alarmMgr = context.getSystemService(AlarmManager.class);
+            alarmMgr.cancel(pendingIntent);
+            pendingIntent.cancel();
+            Log.d(TAG, "Cancelled legacy alarm " + action);
         }
+    }
 
-        final File json = Utils.getCachedUpdateList(context);
-        final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(context);
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
-            @Override
-            public void onFailure(boolean cancelled) {
-                Log.e(TAG, "Could not download updates list, scheduling new check");
-                scheduleUpdatesCheck(context);
-            }
-
-            @Override
-            public void onResponse(int statusCode, String url,
-                    DownloadClient.Headers headers) {
-            }
-
-            @Override
-            public void onSuccess(File destination) {
-                try {
-                    if (json.exists() && Utils.checkForNewUpdates(json, jsonNew, context)) {
-                        showNotification(context);
-                        updateRepeatingUpdatesCheck(context);
+    /**
+     * Download the updates list and notify the user if there are new updates
+     *
+     * @param onComplete run once the check is over, successful or not
+     * @return the listener waiting for the check, to be given to
+     *         UpdateCheckWorker.cancel()
+     */
+    static UpdateCheckWorker.Listener checkForUpdates(final Context context,
+            final Runnable onComplete) {
+        UpdateCheckWorker.Listener listener = result -> {
+            if (result.success) {
+                if (result.newUpdates) {
+                    showNotification(context);
+                    if (Utils.isPrefetchEnabled(context)) {
+                        schedulePrefetch(context);
                     }
-                    jsonNew.renameTo(json);
-                    long currentMillis = System.currentTimeMillis();
-                    preferences.edit()
-                            .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
-                            .apply();
-                    // In case we set a one-shot check because of a previous failure
-                    cancelUpdatesCheck(context);
-                } catch (IOException | JSONException e) {
-                    Log.e(TAG, "Could not parse list, scheduling new check", e);
-                    scheduleUpdatesCheck(context);
                 }
+            } else {
+                Log.e(TAG, "Could not check for updates, scheduling new check");
+                scheduleUpdatesCheck(context);
             }
+            onComplete.run();
         };
-
-        try {
-            DownloadClient downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonNew)
-                    .setDownloadCallback(callback)
-                    .build();
-            downloadClient.start();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not fetch list, scheduling new check", e);
-            scheduleUpdatesCheck(context);
-        }
+        UpdateCheckWorker.getInstance(context).check(listener);
+        return listener;
     }
 
     private static void showNotification(Context context) {
@@ -142,10 +156,67 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         notificationManager.notify(0, notificationBuilder.build());
     }
 
-    private static PendingIntent getRepeatingUpdatesCheckIntent(Context context) {
-        Intent intent = new Intent(context, UpdatesCheckReceiver.class);
-        intent.setAction(DAILY_CHECK_ACTION);
-        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+    /**
+     * Parse the value of a Retry-After header
+     *
+     * @return the delay in milliseconds, or -1 if not valid
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try with a date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                    Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.parse(value.trim()).getTime() - System.currentTimeMillis();
+        } catch (ParseException e) {
+            Log.e(TAG, "Invalid Retry-After value " + value);
+            return -1;
+        }
+    }
+
+    static void setNextCheckNotBefore(Context context, long delayMillis) {
+        long notBefore = System.currentTimeMillis() + Math.min(delayMillis, MAX_SERVER_DELAY_MS);
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(Constants.PREF_UPDATE_CHECK_NOT_BEFORE, notBefore)
+                .apply();
+    }
+
+    /**
+     * @return the given delay with random jitter added, postponed if the server
+     *         asked not to check before a certain time
+     */
+    private static long getCheckDelay(Context context, long delayMillis) {
+        long delay = delayMillis + (long) (sRandom.nextDouble() * delayMillis * CHECK_JITTER_FRACTION);
+        long notBefore = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(Constants.PREF_UPDATE_CHECK_NOT_BEFORE, 0);
+        return Math.max(delay, Math.min(notBefore - System.currentTimeMillis(),
+                MAX_SERVER_DELAY_MS));
+    }
+
+    private static void schedule(Context context, int jobId, long delayMillis,
+            boolean requireIdle) {
+        JobInfo.Builder builder = new JobInfo.Builder(jobId,
+                new ComponentName(context, UpdatesCheckJob.class))
+                .setMinimumLatency(delayMillis)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPersisted(true);
+        if (requireIdle) {
+            builder.setRequiresDeviceIdle(true)
+                    .setRequiresBatteryNotLow(true);
+        }
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.schedule(builder.build());
+    }
+
+    static boolean isRepeatingCheckJob(int jobId) {
+        return jobId == REPEATING_CHECK_JOB_ID;
     }
 
     public static void updateRepeatingUpdatesCheck(Context context) {
@@ -158,43 +229,55 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             return;
         }
 
-        PendingIntent updateCheckIntent = getRepeatingUpdatesCheckIntent(context);
-        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.setRepeating(AlarmManager.RTC, System.currentTimeMillis() +
-                Utils.getUpdateCheckInterval(context), Utils.getUpdateCheckInterval(context),
-                updateCheckIntent);
+        long delay = getCheckDelay(context, Utils.getUpdateCheckInterval(context));
+        schedule(context, REPEATING_CHECK_JOB_ID, delay, true);
 
-        Date nextCheckDate = new Date(System.currentTimeMillis() +
-                Utils.getUpdateCheckInterval(context));
+        Date nextCheckDate = new Date(System.currentTimeMillis() + delay);
         Log.d(TAG, "Setting automatic updates check: " + nextCheckDate);
     }
 
     public static void cancelRepeatingUpdatesCheck(Context context) {
-        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.cancel(getRepeatingUpdatesCheckIntent(context));
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.cancel(REPEATING_CHECK_JOB_ID);
     }
 
-    private static PendingIntent getUpdatesCheckIntent(Context context) {
-        Intent intent = new Intent(context, UpdatesCheckReceiver.class);
-        intent.setAction(ONESHOT_CHECK_ACTION);
-        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+    public static void scheduleUpdatesCheck(Context context) {
+        scheduleUpdatesCheck(context, RETRY_DELAY_MS);
     }
 
-    public static void scheduleUpdatesCheck(Context context) {
-        long millisToNextCheck = AlarmManager.INTERVAL_HOUR * 2;
-        PendingIntent updateCheckIntent = getUpdatesCheckIntent(context);
-        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.set(AlarmManager.ELAPSED_REALTIME,
-                SystemClock.elapsedRealtime() + millisToNextCheck,
-                updateCheckIntent);
-
-        Date nextCheckDate = new Date(System.currentTimeMillis() + millisToNextCheck);
+    private static void scheduleUpdatesCheck(Context context, long delayMillis) {
+        long delay = getCheckDelay(context, delayMillis);
+        schedule(context, ONESHOT_CHECK_JOB_ID, delay, false);
+
+        Date nextCheckDate = new Date(System.currentTimeMillis() + delay);
         Log.d(TAG, "Setting one-shot updates check: " + nextCheckDate);
     }
 
     public static void cancelUpdatesCheck(Context context) {
-        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.cancel(getUpdatesCheckIntent(context));
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.cancel(ONESHOT_CHECK_JOB_ID);
         Log.d(TAG, "Cancelling pending one-shot check");
     }
+
+    /**
+     * Download the newest update in the background the next time the device is
+     * idle, charging and on an unmetered network.
+     */
+    static void schedulePrefetch(Context context) {
+        JobInfo jobInfo = new JobInfo.Builder(PREFETCH_JOB_ID,
+                new ComponentName(context, UpdatesPrefetchJob.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.schedule(jobInfo);
+        Log.d(TAG, "Scheduling prefetch");
+    }
+
+    public static void cancelPrefetch(Context context) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.cancel(PREFETCH_JOB_ID);
+    }
 }
@@ -20,17 +20,23 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.model.InstallTimeline;
 import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 5;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,8 +48,28 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_DOWNLOADED_BYTES = "downloaded_bytes";
+        public static final String COLUMN_NAME_LAST_ACCESS = "last_access";
+        public static final String COLUMN_NAME_PACKAGE_HASH = "package_hash";
     }
 
+    public static class InstallTimelineEntry implements BaseColumns {
+        public static final String TABLE_NAME = "install_timelines";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_START_TIME = "start_time";
+        public static final String COLUMN_NAME_END_TIME = "end_time";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_STREAMING = "streaming";
+        public static final String COLUMN_NAME_APPLY_MS = "apply_ms";
+        public static final String COLUMN_NAME_FINALIZING_MS = "finalizing_ms";
+        public static final String COLUMN_NAME_SUSPENDED_MS = "suspended_ms";
+        public static final String COLUMN_NAME_SUSPEND_COUNT = "suspend_count";
+        public static final String COLUMN_NAME_ERROR_CODE = "error_code";
+    }
+
+    // Older installations are dropped
+    private static final int MAX_INSTALL_TIMELINES = 50;
+
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
                     UpdateEntry._ID + " INTEGER PRIMARY KEY," +
@@ -53,43 +79,89 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES + " INTEGER DEFAULT -1," +
+                    UpdateEntry.COLUMN_NAME_LAST_ACCESS + " INTEGER DEFAULT 0," +
+                    UpdateEntry.COLUMN_NAME_PACKAGE_HASH + " TEXT)";
+
+    private static final String SQL_CREATE_INSTALL_TIMELINES =
+            "CREATE TABLE " + InstallTimelineEntry.TABLE_NAME + " (" +
+                    InstallTimelineEntry._ID + " INTEGER PRIMARY KEY," +
+                    InstallTimelineEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT," +
+                    InstallTimelineEntry.COLUMN_NAME_START_TIME + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_END_TIME + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_STREAMING + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_APPLY_MS + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_FINALIZING_MS + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_SUSPENDED_MS + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_SUSPEND_COUNT + " INTEGER," +
+                    InstallTimelineEntry.COLUMN_NAME_ERROR_CODE + " INTEGER)";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_INSTALL_TIMELINES =
+            "DROP TABLE IF EXISTS " + InstallTimelineEntry.TABLE_NAME;
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_INSTALL_TIMELINES);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        if (oldVersion < 2) {
+            // Keep the downloads, their progress is unknown until resumed
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES + " INTEGER DEFAULT -1");
+        }
+        if (oldVersion < 3) {
+            // Existing packages are evicted oldest build first
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_LAST_ACCESS + " INTEGER DEFAULT 0");
+        }
+        if (oldVersion < 4) {
+            // Packages downloaded before can't be shared
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_PACKAGE_HASH + " TEXT");
+        }
+        if (oldVersion < 5) {
+            db.execSQL(SQL_CREATE_INSTALL_TIMELINES);
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_INSTALL_TIMELINES);
+        onCreate(db);
     }
 
-    public long addUpdate(Update update) {
+    public long addUpdate(UpdateInfo update) {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues values = new ContentValues();
         fillContentValues(update, values);
-        return db.insert(UpdateEntry.TABLE_NAME, null, values);
+        long start = SystemClock.elapsedRealtimeNanos();
+        long rowId = db.insert(UpdateEntry.TABLE_NAME, null, values);
+        recordWrite(start);
+        return rowId;
     }
 
-    public long addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
+    public long addUpdateWithOnConflict(UpdateInfo update, int conflictAlgorithm) {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues values = new ContentValues();
         fillContentValues(update, values);
-        return db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
+        long start = SystemClock.elapsedRealtimeNanos();
+        long rowId = db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values,
+                conflictAlgorithm);
+        recordWrite(start);
+        return rowId;
     }
 
-    private static void fillContentValues(Update update, ContentValues values) {
+    private static void fillContentValues(UpdateInfo update, ContentValues values) {
         values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
         values.put(UpdateEntry.COLUMN_NAME_PATH, update.getFile().getAbsolutePath());
         values.put(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID, update.getDownloadId());
@@ -97,22 +169,31 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, update.getDownloadedBytes());
+        values.put(UpdateEntry.COLUMN_NAME_LAST_ACCESS, update.getLastAccess());
+        values.put(UpdateEntry.COLUMN_NAME_PACKAGE_HASH, update.getPackageHash());
     }
 
     public boolean removeUpdate(String downloadId) {
         SQLiteDatabase db = getWritableDatabase();
         String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
         String[] selectionArgs = {downloadId};
-        return db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean removed = db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
+        recordWrite(start);
+        return removed;
     }
 
     public boolean removeUpdate(long rowId) {
         SQLiteDatabase db = getWritableDatabase();
         String selection = UpdateEntry._ID + " = " + rowId;
-        return db.delete(UpdateEntry.TABLE_NAME, selection, null) != 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean removed = db.delete(UpdateEntry.TABLE_NAME, selection, null) != 0;
+        recordWrite(start);
+        return removed;
     }
 
-    public boolean changeUpdateStatus(Update update) {
+    public boolean changeUpdateStatus(UpdateInfo update) {
         String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
         String[] selectionArgs = {update.getDownloadId()};
         return changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
@@ -128,7 +209,125 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(UpdateEntry.COLUMN_NAME_STATUS, status);
-        return db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs) != 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean changed =
+                db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs) != 0;
+        recordWrite(start);
+        return changed;
+    }
+
+    public boolean changeUpdateDownloadedBytes(UpdateInfo update) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, update.getDownloadedBytes());
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {update.getDownloadId()};
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean changed =
+                db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs) != 0;
+        recordWrite(start);
+        return changed;
+    }
+
+    public boolean changeUpdateLastAccess(UpdateInfo update) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(UpdateEntry.COLUMN_NAME_LAST_ACCESS, update.getLastAccess());
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {update.getDownloadId()};
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean changed =
+                db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs) != 0;
+        recordWrite(start);
+        return changed;
+    }
+
+    /**
+     * @return the absolute paths of all the packages known, to tell apart the
+     *         stale files in the download directory
+     */
+    public Set<String> getPackagePaths() {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {UpdateEntry.COLUMN_NAME_PATH};
+        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, null, null,
+                null, null, null);
+        Set<String> paths = new HashSet<>();
+        if (cursor != null) {
+            int index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PATH);
+            while (cursor.moveToNext()) {
+                paths.add(cursor.getString(index));
+            }
+            cursor.close();
+        }
+        return paths;
+    }
+
+    private static void recordWrite(long startNanos) {
+        Metrics.getInstance().histogram(Metrics.DB_WRITE_LATENCY_US)
+                .record((SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+    }
+
+    public long addInstallTimeline(InstallTimeline timeline) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(InstallTimelineEntry.COLUMN_NAME_DOWNLOAD_ID, timeline.getDownloadId());
+        values.put(InstallTimelineEntry.COLUMN_NAME_START_TIME, timeline.getStartTime());
+        values.put(InstallTimelineEntry.COLUMN_NAME_END_TIME, timeline.getEndTime());
+        values.put(InstallTimelineEntry.COLUMN_NAME_SIZE, timeline.getFileSize());
+        values.put(InstallTimelineEntry.COLUMN_NAME_STREAMING, timeline.isStreaming() ? 1 : 0);
+        values.put(InstallTimelineEntry.COLUMN_NAME_APPLY_MS, timeline.getApplyMillis());
+        values.put(InstallTimelineEntry.COLUMN_NAME_FINALIZING_MS,
+                timeline.getFinalizingMillis());
+        values.put(InstallTimelineEntry.COLUMN_NAME_SUSPENDED_MS, timeline.getSuspendedMillis());
+        values.put(InstallTimelineEntry.COLUMN_NAME_SUSPEND_COUNT, timeline.getSuspendCount());
+        values.put(InstallTimelineEntry.COLUMN_NAME_ERROR_CODE, timeline.getErrorCode());
+        long start = SystemClock.elapsedRealtimeNanos();
+        long rowId = db.insert(InstallTimelineEntry.TABLE_NAME, null, values);
+        db.delete(InstallTimelineEntry.TABLE_NAME, InstallTimelineEntry._ID + " NOT IN (" +
+                "SELECT " + InstallTimelineEntry._ID + " FROM " + InstallTimelineEntry.TABLE_NAME +
+                " ORDER BY " + InstallTimelineEntry._ID + " DESC LIMIT " +
+                MAX_INSTALL_TIMELINES + ")", null);
+        recordWrite(start);
+        return rowId;
+    }
+
+    /**
+     * @return the timelines of the last installations, most recent first
+     */
+    public List<InstallTimeline> getInstallTimelines() {
+        SQLiteDatabase db = getReadableDatabase();
+        String sort = InstallTimelineEntry._ID + " DESC";
+        Cursor cursor = db.query(InstallTimelineEntry.TABLE_NAME, null, null, null,
+                null, null, sort);
+        List<InstallTimeline> timelines = new ArrayList<>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                InstallTimeline timeline = new InstallTimeline();
+                int index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_DOWNLOAD_ID);
+                timeline.setDownloadId(cursor.getString(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_START_TIME);
+                timeline.setStartTime(cursor.getLong(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_END_TIME);
+                timeline.setEndTime(cursor.getLong(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_SIZE);
+                timeline.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_STREAMING);
+                timeline.setStreaming(cursor.getInt(index) != 0);
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_APPLY_MS);
+                timeline.setApplyMillis(cursor.getLong(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_FINALIZING_MS);
+                timeline.setFinalizingMillis(cursor.getLong(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_SUSPENDED_MS);
+                timeline.setSuspendedMillis(cursor.getLong(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_SUSPEND_COUNT);
+                timeline.setSuspendCount(cursor.getInt(index));
+                index = cursor.getColumnIndex(InstallTimelineEntry.COLUMN_NAME_ERROR_CODE);
+                timeline.setErrorCode(cursor.getInt(index));
+                timelines.add(timeline);
+            }
+            cursor.close();
+        }
+        return timelines;
     }
 
     public Update getUpdate(long rowId) {
@@ -161,6 +360,9 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES,
+                UpdateEntry.COLUMN_NAME_LAST_ACCESS,
+                UpdateEntry.COLUMN_NAME_PACKAGE_HASH,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -184,6 +386,12 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES);
+                update.setDownloadedBytes(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_LAST_ACCESS);
+                update.setLastAccess(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PACKAGE_HASH);
+                update.setPackageHash(cursor.getString(index));
                 updates.add(update);
             }
             cursor.close();
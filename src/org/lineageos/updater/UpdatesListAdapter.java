@@ -51,6 +51,7 @@ import com.google.android.material.snackbar.Snackbar;
 
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.download.ConnectionPool;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.PermissionsUtils;
@@ -63,7 +64,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.util.List;
@@ -158,7 +159,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         if (mUpdaterController.isDownloading(downloadId)) {
             canDelete = true;
             String downloaded = StringGenerator.bytesToMegabytes(mActivity,
-                    update.getFile().length());
+                    Math.max(0, update.getDownloadedBytes()));
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -192,7 +193,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             canDelete = true;
             setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
             String downloaded = StringGenerator.bytesToMegabytes(mActivity,
-                    update.getFile().length());
+                    Math.max(0, update.getDownloadedBytes()));
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -364,7 +365,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 button.setEnabled(enabled);
                 UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                 final boolean canInstall = Utils.canInstall(update) ||
-                        update.getFile().length() == update.getFileSize();
+                        update.getDownloadedBytes() == update.getFileSize();
                 clickListener = enabled ? view -> {
                     if (canInstall) {
                         mUpdaterController.resumeDownload(downloadId);
@@ -585,11 +586,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             String inputString;
             int i = 0;
 
+            ConnectionPool pool = ConnectionPool.getInstance();
+            HttpURLConnection connection = null;
             try {
-                URL changelog = new URL(strings[0]);
+                connection = pool.open(strings[0]);
                 BufferedReader in = new BufferedReader(
                         new InputStreamReader(
-                        changelog.openStream()));
+                        connection.getInputStream()));
 
                 while((inputString = in.readLine()) != null) {
                     // don't include the top 4 lines of the changelog
@@ -600,9 +603,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 }
 
                 in.close();
+                pool.releaseConsumed();
                 return outputString;
             } catch(IOException e) {
                 Log.e(TAG, "Could not fetch changelog from " + strings[0]);
+                if (connection != null) {
+                    pool.discard(connection);
+                }
                 return mActivity.getResources().getString(R.string.changelog_fail);
             }
         }
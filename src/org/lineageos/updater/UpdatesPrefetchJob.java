@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import org.json.JSONException;
+import org.lineageos.updater.controller.UpdaterController;
+import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Downloads the newest update while the device is idle, charging and on an
+ * unmetered network. The download is throttled and paused as soon as these
+ * conditions stop holding or the user opens the app.
+ */
+public class UpdatesPrefetchJob extends JobService {
+
+    private static final String TAG = "UpdatesPrefetchJob";
+
+    private JobParameters mParams;
+    private UpdaterController mUpdaterController;
+    private String mDownloadId;
+    private boolean mBound;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
+            if (mUpdaterController == null || !downloadId.equals(mDownloadId)) {
+                return;
+            }
+            UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+            if (update == null) {
+                finish(false);
+            } else if (!mUpdaterController.isPrefetching(downloadId) &&
+                    update.getStatus() != UpdateStatus.VERIFYING) {
+                // Done, failed or taken over by the user
+                Log.d(TAG, "Prefetch of " + downloadId + " over: " + update.getStatus());
+                finish(update.getStatus() == UpdateStatus.PAUSED_ERROR);
+            }
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
+            mUpdaterController = binder.getService().getUpdaterController();
+            startPrefetch();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mUpdaterController = null;
+        }
+    };
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!Utils.isPrefetchEnabled(this)) {
+            return false;
+        }
+        mParams = params;
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
+        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, intentFilter);
+        Intent intent = new Intent(this, UpdaterService.class);
+        startService(intent);
+        mBound = bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        if (!mBound) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Conditions no longer met, pausing prefetch");
+        if (mUpdaterController != null) {
+            mUpdaterController.stopPrefetch();
+        }
+        release();
+        return true;
+    }
+
+    private void startPrefetch() {
+        File jsonFile = Utils.getCachedUpdateList(this);
+        UpdateInfo newest = null;
+        try {
+            for (UpdateInfo update : Utils.parseJson(jsonFile, true, this)) {
+                mUpdaterController.addUpdate(update);
+                if (Utils.canInstall(update) &&
+                        (newest == null || update.getTimestamp() > newest.getTimestamp())) {
+                    newest = update;
+                }
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read the updates list", e);
+        }
+        if (newest == null) {
+            finish(false);
+            return;
+        }
+
+        String downloadId = newest.getDownloadId();
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED ||
+                mUpdaterController.isDownloading(downloadId) ||
+                mUpdaterController.isVerifyingUpdate(downloadId) ||
+                mUpdaterController.isInstallingUpdate()) {
+            Log.d(TAG, "Nothing to prefetch");
+            finish(false);
+            return;
+        }
+        mDownloadId = downloadId;
+        if (!mUpdaterController.startPrefetch(downloadId) ||
+                !mUpdaterController.isPrefetching(downloadId)) {
+            // Failed, or the package was already available
+            finish(false);
+        }
+    }
+
+    private void finish(boolean reschedule) {
+        if (mParams == null) {
+            return;
+        }
+        jobFinished(mParams, reschedule);
+        release();
+    }
+
+    private void release() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
+        if (mBound) {
+            unbindService(mConnection);
+            mBound = false;
+        }
+        mUpdaterController = null;
+        mDownloadId = null;
+        mParams = null;
+    }
+}
@@ -25,7 +25,9 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Tracer;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.InstallTimeline;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateStatus;
 
@@ -58,6 +60,10 @@ class ABUpdateInstaller {
     private boolean mFinalizing;
     private int mProgress;
 
+    private boolean mStreamingAborted;
+
+    private final InstallTimelineRecorder mTimelineRecorder = new InstallTimelineRecorder();
+
     private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
 
         @Override
@@ -69,13 +75,26 @@ class ABUpdateInstaller {
                 return;
             }
 
+            // While a pipelined installation is running, the download status takes priority
+            boolean downloading = mUpdaterController.isDownloading(mDownloadId) ||
+                    mUpdaterController.isVerifyingUpdate(mDownloadId);
+
             switch (status) {
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
                 case UpdateEngine.UpdateStatusConstants.FINALIZING: {
-                    if (update.getStatus() != UpdateStatus.INSTALLING) {
+                    if (!downloading && update.getStatus() != UpdateStatus.INSTALLING) {
                         update.setStatus(UpdateStatus.INSTALLING);
                         mUpdaterController.notifyUpdateChange(mDownloadId);
                     }
+                    if (!mTimelineRecorder.isStarted()) {
+                        // Reconnected to an installation started before
+                        mTimelineRecorder.start(mDownloadId, update.getFileSize(), downloading);
+                    }
+                    if (status == UpdateEngine.UpdateStatusConstants.FINALIZING) {
+                        mTimelineRecorder.onFinalizing();
+                    } else {
+                        mTimelineRecorder.onApply();
+                    }
                     mProgress = Math.round(percent * 100);
                     mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
                     mFinalizing = status == UpdateEngine.UpdateStatusConstants.FINALIZING;
@@ -85,16 +104,21 @@ class ABUpdateInstaller {
                 break;
 
                 case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT: {
+                    recordTimeline(UpdateEngine.ErrorCodeConstants.SUCCESS);
                     installationDone(true);
                     update.setInstallProgress(0);
-                    update.setStatus(UpdateStatus.INSTALLED);
-                    mUpdaterController.notifyUpdateChange(mDownloadId);
+                    if (!downloading) {
+                        update.setStatus(UpdateStatus.INSTALLED);
+                        mUpdaterController.notifyUpdateChange(mDownloadId);
+                    }
+                    // Otherwise the status is updated once the download has been verified
                 }
                 break;
 
                 case UpdateEngine.UpdateStatusConstants.IDLE: {
                     // The service was restarted because we thought we were installing an
                     // update, but we aren't, so clear everything.
+                    mTimelineRecorder.discard();
                     installationDone(false);
                 }
                 break;
@@ -103,6 +127,12 @@ class ABUpdateInstaller {
 
         @Override
         public void onPayloadApplicationComplete(int errorCode) {
+            recordTimeline(errorCode);
+            if (mStreamingAborted) {
+                // The status of the update has already been set by the controller
+                mStreamingAborted = false;
+                return;
+            }
             if (errorCode != UpdateEngine.ErrorCodeConstants.SUCCESS) {
                 installationDone(false);
                 Update update = mUpdaterController.getActualUpdate(mDownloadId);
@@ -197,22 +227,55 @@ class ABUpdateInstaller {
             return false;
         }
 
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        return applyPayload(zipFileUri, offset, 0, headerKeyValuePairs, true);
+    }
+
+    /**
+     * Install an update whose package is still being downloaded. The status of the
+     * update isn't changed until the download has been verified.
+     *
+     * @param url URL the package is being served at
+     * @param offset offset of the payload within the package
+     * @param size size of the payload
+     * @param headerKeyValuePairs content of payload_properties.txt
+     */
+    boolean installStreaming(String downloadId, String url, long offset, long size,
+            String[] headerKeyValuePairs) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return false;
+        }
+
+        mDownloadId = downloadId;
+        mStreamingAborted = false;
+        return applyPayload(url, offset, size, headerKeyValuePairs, false);
+    }
+
+    private boolean applyPayload(String url, long offset, long size,
+            String[] headerKeyValuePairs, boolean updateStatus) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                if (updateStatus) {
+                    mUpdaterController.getActualUpdate(mDownloadId)
+                            .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                    mUpdaterController.notifyUpdateChange(mDownloadId);
+                }
                 return false;
             }
         }
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.applyPayload(url, offset, size, headerKeyValuePairs);
+        Tracer.beginStage(mDownloadId, Tracer.STAGE_INSTALL);
+        mTimelineRecorder.start(mDownloadId,
+                mUpdaterController.getActualUpdate(mDownloadId).getFileSize(), !updateStatus);
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+        if (updateStatus) {
+            mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
+            mUpdaterController.notifyUpdateChange(mDownloadId);
+        }
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .putString(PREF_INSTALLING_AB_ID, mDownloadId)
@@ -244,6 +307,14 @@ class ABUpdateInstaller {
         return true;
     }
 
+    private void recordTimeline(int errorCode) {
+        Tracer.endFinalStage(mDownloadId, Tracer.STAGE_INSTALL);
+        InstallTimeline timeline = mTimelineRecorder.finish(errorCode);
+        if (timeline != null) {
+            mUpdaterController.addInstallTimeline(timeline);
+        }
+    }
+
     private void installationDone(boolean needsReboot) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         String id = needsReboot ? prefs.getString(PREF_INSTALLING_AB_ID, null) : null;
@@ -274,6 +345,30 @@ class ABUpdateInstaller {
         return true;
     }
 
+    /**
+     * Revert an installation started with installStreaming(), e.g. because the
+     * download failed or couldn't be verified.
+     */
+    void abortStreaming() {
+        if (!isInstallingUpdate(mContext, mDownloadId) || !mBound) {
+            return;
+        }
+
+        mStreamingAborted = true;
+        try {
+            if (isWaitingForReboot(mContext, mDownloadId)) {
+                mUpdateEngine.resetStatus();
+                mStreamingAborted = false;
+            } else {
+                mUpdateEngine.cancel();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not abort installation", e);
+            mStreamingAborted = false;
+        }
+        installationDone(false);
+    }
+
     public boolean suspend() {
         if (!isInstallingUpdate(mContext)) {
             Log.e(TAG, "cancel: Not installing any update");
@@ -286,6 +381,7 @@ class ABUpdateInstaller {
         }
 
         mUpdateEngine.suspend();
+        mTimelineRecorder.onSuspend();
 
         mUpdaterController.getActualUpdate(mDownloadId)
                 .setStatus(UpdateStatus.INSTALLATION_SUSPENDED);
@@ -310,6 +406,7 @@ class ABUpdateInstaller {
         }
 
         mUpdateEngine.resume();
+        mTimelineRecorder.onResume();
 
         mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
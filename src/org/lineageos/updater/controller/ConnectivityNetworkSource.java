@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * NetworkSource backed by ConnectivityManager default network callbacks.
+ */
+class ConnectivityNetworkSource implements NetworkSource {
+
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+
+    ConnectivityNetworkSource(Context context) {
+        mConnectivityManager = context.getSystemService(ConnectivityManager.class);
+    }
+
+    static NetworkState getState(Network network, NetworkCapabilities capabilities) {
+        if (network == null || capabilities == null) {
+            return NetworkState.DISCONNECTED;
+        }
+        return new NetworkState(network.getNetworkHandle(),
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+                !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED),
+                !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING));
+    }
+
+    @Override
+    public void register(final Listener listener) {
+        if (mNetworkCallback != null) {
+            return;
+        }
+        Network network = mConnectivityManager.getActiveNetwork();
+        listener.onNetworkChanged(getState(network,
+                mConnectivityManager.getNetworkCapabilities(network)));
+
+        mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network,
+                    NetworkCapabilities capabilities) {
+                listener.onNetworkChanged(getState(network, capabilities));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                listener.onNetworkChanged(NetworkState.DISCONNECTED);
+            }
+        };
+        mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+    }
+
+    @Override
+    public void unregister() {
+        if (mNetworkCallback != null) {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            mNetworkCallback = null;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+/**
+ * Properties of the device relevant to A/B installations.
+ */
+final class DeviceState {
+
+    // One of the PowerManager.THERMAL_STATUS_ constants
+    final int thermalStatus;
+    // Battery level in percent
+    final int batteryLevel;
+    final boolean charging;
+    final boolean interactive;
+
+    DeviceState(int thermalStatus, int batteryLevel, boolean charging, boolean interactive) {
+        this.thermalStatus = thermalStatus;
+        this.batteryLevel = batteryLevel;
+        this.charging = charging;
+        this.interactive = interactive;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceState{thermal=" + thermalStatus + ", battery=" + batteryLevel +
+                ", charging=" + charging + ", interactive=" + interactive + "}";
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pauses downloads when the network isn't suitable and resumes them once it is.
+ * Downloads are reconnected on the new default network when it changes,
+ * continuing from the data already downloaded.
+ */
+class DownloadNetworkScheduler implements NetworkSource.Listener {
+
+    private static final String TAG = "DownloadNetworkScheduler";
+
+    enum Decision {
+        RUN,
+        PAUSE,
+    }
+
+    /**
+     * The downloads being scheduled, implemented by UpdaterController
+     */
+    interface Downloads {
+        List<UpdateInfo> getUpdates();
+
+        UpdateInfo getUpdate(String downloadId);
+
+        boolean isDownloading(String downloadId);
+
+        boolean isPrefetching(String downloadId);
+
+        boolean pauseDownload(String downloadId);
+
+        boolean resumeDownload(String downloadId);
+
+        /**
+         * Continue a running download on a new connection. Unlike pausing and
+         * resuming it, this keeps its pipelined installation going.
+         */
+        boolean reconnectDownload(String downloadId);
+    }
+
+    private final Downloads mDownloads;
+    private final NetworkSource mNetworkSource;
+    private final SharedPreferences mPreferences;
+
+    // Downloads paused by the scheduler, to be resumed when possible
+    private final Set<String> mPausedDownloads = new HashSet<>();
+    // Downloads the user started while on a metered network
+    private final Set<String> mMeteredAllowed = new HashSet<>();
+
+    private NetworkState mState;
+
+    DownloadNetworkScheduler(Downloads downloads, NetworkSource networkSource,
+            SharedPreferences preferences) {
+        mDownloads = downloads;
+        mNetworkSource = networkSource;
+        mPreferences = preferences;
+    }
+
+    /**
+     * @param state the current network
+     * @param warnOnMetered whether the user wants to be warned before using metered networks
+     * @param meteredAllowed whether the user explicitly allowed this download on a
+     *                       metered network
+     */
+    static Decision decide(NetworkState state, boolean warnOnMetered, boolean meteredAllowed) {
+        if (state == null || !state.connected || state.roaming) {
+            return Decision.PAUSE;
+        }
+        if (state.metered && warnOnMetered && !meteredAllowed) {
+            return Decision.PAUSE;
+        }
+        return Decision.RUN;
+    }
+
+    void start() {
+        mNetworkSource.register(this);
+    }
+
+    void stop() {
+        mNetworkSource.unregister();
+    }
+
+    /**
+     * @return true if some downloads are waiting for a suitable network
+     */
+    boolean hasPausedDownloads() {
+        return !mPausedDownloads.isEmpty();
+    }
+
+    void onUpdateStatusChanged(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        if (update.getStatus() == UpdateStatus.STARTING) {
+            // Started by the user or by us, either way no longer waiting
+            mPausedDownloads.remove(downloadId);
+            if (mState != null && mState.metered) {
+                mMeteredAllowed.add(downloadId);
+            }
+        } else if (update.getStatus() == UpdateStatus.INSUFFICIENT_SPACE) {
+            // Waiting for the user to free some space, not for the network
+            mPausedDownloads.remove(downloadId);
+        } else if (update.getStatus() == UpdateStatus.DELETED) {
+            mPausedDownloads.remove(downloadId);
+            mMeteredAllowed.remove(downloadId);
+        }
+    }
+
+    @Override
+    public void onNetworkChanged(NetworkState state) {
+        NetworkState previous = mState;
+        mState = state;
+        Log.d(TAG, "Network changed: " + state);
+
+        for (UpdateInfo update : mDownloads.getUpdates()) {
+            String downloadId = update.getDownloadId();
+            boolean downloading = mDownloads.isDownloading(downloadId);
+            // Prefetch jobs are stopped by the job scheduler when the network changes
+            if (mDownloads.isPrefetching(downloadId) ||
+                    (!downloading && !mPausedDownloads.contains(downloadId))) {
+                continue;
+            }
+            Decision decision = decide(downloadId);
+            if (downloading && decision == Decision.PAUSE) {
+                Log.d(TAG, "Pausing " + downloadId + " until a suitable network is available");
+                mDownloads.pauseDownload(downloadId);
+                mPausedDownloads.add(downloadId);
+            } else if (downloading && previous != null && previous.connected &&
+                    !state.isSameNetwork(previous)) {
+                Log.d(TAG, "Moving " + downloadId + " to the new network");
+                mDownloads.reconnectDownload(downloadId);
+            } else if (!downloading && decision == Decision.RUN) {
+                resume(downloadId);
+            }
+        }
+    }
+
+    private Decision decide(String downloadId) {
+        boolean warnOnMetered = mPreferences.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
+        return decide(mState, warnOnMetered, mMeteredAllowed.contains(downloadId));
+    }
+
+    private void resume(String downloadId) {
+        if (!mPausedDownloads.remove(downloadId)) {
+            return;
+        }
+        UpdateInfo update = mDownloads.getUpdate(downloadId);
+        if (update == null || update.getStatus() != UpdateStatus.PAUSED) {
+            return;
+        }
+        Log.d(TAG, "Resuming " + downloadId);
+        mDownloads.resumeDownload(downloadId);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+/**
+ * Latest progress of a download. It's published by the download thread on every
+ * read and sampled at a fixed rate by the controller, so publishing must not
+ * allocate or block. A sequence number, odd while a write is in progress, lets
+ * the single reader detect torn reads and retry.
+ */
+class DownloadProgress {
+
+    // Written by the download thread only
+    private volatile long mSequence;
+    private volatile long mBytesRead;
+    private volatile long mContentLength;
+    private volatile long mSpeed;
+    private volatile long mEta;
+
+    // Accessed by the sampler only
+    private long mSampledSequence;
+    private long mSampledBytesRead;
+    private long mSampledContentLength;
+    private long mSampledSpeed;
+    private long mSampledEta;
+
+    void publish(long bytesRead, long contentLength, long speed, long eta) {
+        long sequence = mSequence;
+        mSequence = sequence + 1;
+        mBytesRead = bytesRead;
+        mContentLength = contentLength;
+        mSpeed = speed;
+        mEta = eta;
+        mSequence = sequence + 2;
+    }
+
+    /**
+     * Take a consistent copy of the latest published values
+     *
+     * @return true if something was published since the previous sample
+     */
+    boolean sample() {
+        while (true) {
+            long sequence = mSequence;
+            if (sequence == mSampledSequence) {
+                return false;
+            }
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long bytesRead = mBytesRead;
+            long contentLength = mContentLength;
+            long speed = mSpeed;
+            long eta = mEta;
+            if (sequence == mSequence) {
+                mSampledSequence = sequence;
+                mSampledBytesRead = bytesRead;
+                mSampledContentLength = contentLength;
+                mSampledSpeed = speed;
+                mSampledEta = eta;
+                return true;
+            }
+        }
+    }
+
+    long getBytesRead() {
+        return mSampledBytesRead;
+    }
+
+    /**
+     * Get the bytes read last published, without waiting for the sampler. Only
+     * up to date on the download thread or once the download is over.
+     *
+     * @return the bytes read, or -1 if nothing was published
+     */
+    long getPublishedBytesRead() {
+        return mSequence != 0 ? mBytesRead : -1;
+    }
+
+    long getContentLength() {
+        return mSampledContentLength;
+    }
+
+    long getSpeed() {
+        return mSampledSpeed;
+    }
+
+    long getEta() {
+        return mSampledEta;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
+
+import java.util.Locale;
+
+/**
+ * Suspends A/B installations while the device is hot, in use or low on
+ * battery, and resumes them once conditions allow. Installations suspended
+ * or resumed by the user are left alone.
+ */
+class InstallPolicyScheduler implements DeviceStateSource.Listener {
+
+    private static final String TAG = "InstallPolicyScheduler";
+
+    private static final String PREF_POLICY_SUSPENDED_ID = "install_policy_suspended_id";
+
+    // Wait for conditions to settle before resuming, to avoid suspending again right away
+    private static final long RESUME_DELAY_MS = 30000;
+
+    private static final int LOW_BATTERY_LEVEL = 15;
+    private static final int RESUME_BATTERY_LEVEL = 20;
+
+    enum Decision {
+        RUN,
+        PAUSE_HOT,
+        PAUSE_IN_USE,
+        PAUSE_LOW_BATTERY,
+    }
+
+    private final Context mContext;
+    private final UpdaterController mUpdaterController;
+    private final DeviceStateSource mDeviceStateSource;
+    private final SharedPreferences mPreferences;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mResumeRunnable = () -> {
+        mResumePending = false;
+        resume();
+    };
+
+    // The installation being watched
+    private String mInstallingId;
+    // The installation suspended by the scheduler, if any
+    private String mSuspendedId;
+    private long mSuspendedSince;
+    // The user resumed the installation while the scheduler wanted it suspended
+    private boolean mUserResumed;
+    private boolean mResumePending;
+    private DeviceState mState;
+    private boolean mRegistered;
+
+    InstallPolicyScheduler(Context context, UpdaterController controller,
+            DeviceStateSource deviceStateSource, SharedPreferences preferences) {
+        mContext = context.getApplicationContext();
+        mUpdaterController = controller;
+        mDeviceStateSource = deviceStateSource;
+        mPreferences = preferences;
+    }
+
+    /**
+     * @param state the current state of the device
+     * @param suspended whether the installation is currently suspended by us, the
+     *                  battery needs some margin before resuming
+     */
+    static Decision decide(DeviceState state, boolean suspended) {
+        if (state == null) {
+            return Decision.RUN;
+        }
+        if (state.thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            return Decision.PAUSE_HOT;
+        }
+        // The thermal status is the only sign of a heavy foreground app we can rely on
+        if (state.interactive && state.thermalStatus >= PowerManager.THERMAL_STATUS_LIGHT) {
+            return Decision.PAUSE_IN_USE;
+        }
+        int batteryLevel = suspended ? RESUME_BATTERY_LEVEL : LOW_BATTERY_LEVEL;
+        if (!state.charging && state.batteryLevel < batteryLevel) {
+            return Decision.PAUSE_LOW_BATTERY;
+        }
+        return Decision.RUN;
+    }
+
+    void start() {
+        String suspendedId = mPreferences.getString(PREF_POLICY_SUSPENDED_ID, null);
+        if (suspendedId == null) {
+            return;
+        }
+        if (ABUpdateInstaller.isInstallingUpdateSuspended(mContext, suspendedId)) {
+            // Suspended before the service was restarted, the time before isn't counted
+            mInstallingId = suspendedId;
+            mSuspendedId = suspendedId;
+            mSuspendedSince = SystemClock.elapsedRealtime();
+            register();
+        } else {
+            mPreferences.edit().remove(PREF_POLICY_SUSPENDED_ID).apply();
+        }
+    }
+
+    void stop() {
+        unregister();
+        cancelResume();
+    }
+
+    void onUpdateStatusChanged(UpdateInfo update) {
+        String downloadId = update.getDownloadId();
+        UpdateStatus status = update.getStatus();
+        if (status == UpdateStatus.INSTALLING) {
+            if (!ABUpdateInstaller.isInstallingUpdate(mContext, downloadId)) {
+                return;
+            }
+            if (!downloadId.equals(mInstallingId)) {
+                mInstallingId = downloadId;
+                mUserResumed = false;
+            }
+            if (downloadId.equals(mSuspendedId) &&
+                    !ABUpdateInstaller.isInstallingUpdateSuspended(mContext, downloadId)) {
+                Log.d(TAG, "Installation of " + downloadId + " resumed by the user");
+                onResumed();
+                mUserResumed = true;
+            }
+            register();
+        } else if (downloadId.equals(mInstallingId)) {
+            if (status == UpdateStatus.INSTALLATION_SUSPENDED) {
+                if (mSuspendedId == null) {
+                    // Suspended by the user, wait for them to resume it
+                    unregister();
+                }
+                return;
+            }
+            // Done, failed, cancelled or deleted
+            if (mSuspendedId != null) {
+                onResumed();
+            }
+            mInstallingId = null;
+            mUserResumed = false;
+            unregister();
+        }
+    }
+
+    @Override
+    public void onDeviceStateChanged(DeviceState state) {
+        mState = state;
+        if (mInstallingId == null) {
+            return;
+        }
+
+        Decision decision = decide(state, mSuspendedId != null);
+        if (decision == Decision.RUN) {
+            mUserResumed = false;
+            if (mSuspendedId != null && !mResumePending) {
+                mResumePending = true;
+                mHandler.postDelayed(mResumeRunnable, RESUME_DELAY_MS);
+            }
+            return;
+        }
+
+        cancelResume();
+        if (mSuspendedId == null && !mUserResumed) {
+            suspend(decision);
+        }
+    }
+
+    private void suspend(Decision decision) {
+        ABUpdateInstaller installer = ABUpdateInstaller.getInstance(mContext,
+                mUpdaterController);
+        if (!installer.reconnect()) {
+            return;
+        }
+        Log.d(TAG, "Suspending installation of " + mInstallingId + ": " + decision +
+                ", " + mState);
+        // Set before suspending, the status change must be recognized as ours
+        mSuspendedId = mInstallingId;
+        mSuspendedSince = SystemClock.elapsedRealtime();
+        if (!installer.suspend()) {
+            mSuspendedId = null;
+            return;
+        }
+        mPreferences.edit().putString(PREF_POLICY_SUSPENDED_ID, mSuspendedId).apply();
+        Metrics.getInstance().counter(Metrics.INSTALL_POLICY_PAUSES +
+                decision.name().toLowerCase(Locale.ROOT)).increment();
+    }
+
+    private void resume() {
+        if (mSuspendedId == null ||
+                !ABUpdateInstaller.isInstallingUpdateSuspended(mContext, mSuspendedId)) {
+            return;
+        }
+        ABUpdateInstaller installer = ABUpdateInstaller.getInstance(mContext,
+                mUpdaterController);
+        if (!installer.reconnect()) {
+            return;
+        }
+        Log.d(TAG, "Resuming installation of " + mSuspendedId + ", " + mState);
+        // Cleared before resuming, the status change must be recognized as ours
+        onResumed();
+        installer.resume();
+    }
+
+    private void onResumed() {
+        long pausedMillis = SystemClock.elapsedRealtime() - mSuspendedSince;
+        Metrics.getInstance().histogram(Metrics.INSTALL_POLICY_PAUSED_MS).record(pausedMillis);
+        mSuspendedId = null;
+        cancelResume();
+        mPreferences.edit().remove(PREF_POLICY_SUSPENDED_ID).apply();
+    }
+
+    private void cancelResume() {
+        mHandler.removeCallbacks(mResumeRunnable);
+        mResumePending = false;
+    }
+
+    private void register() {
+        if (!mRegistered) {
+            mRegistered = true;
+            mDeviceStateSource.register(this);
+        }
+    }
+
+    private void unregister() {
+        if (mRegistered) {
+            mRegistered = false;
+            mDeviceStateSource.unregister();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.updater.model.InstallTimeline;
+
+/**
+ * Measures the phases of an A/B installation from the status updates of
+ * update_engine. If the app is restarted during the installation, only the
+ * time after the restart is measured.
+ */
+class InstallTimelineRecorder {
+
+    private static final String TAG = "InstallTimelineRecorder";
+
+    private static final int PHASE_NONE = 0;
+    private static final int PHASE_APPLY = 1;
+    private static final int PHASE_FINALIZING = 2;
+    private static final int PHASE_SUSPENDED = 3;
+
+    private InstallTimeline mTimeline;
+    private int mPhase = PHASE_NONE;
+    private int mPhaseBeforeSuspend = PHASE_NONE;
+    private long mPhaseStartMillis;
+
+    void start(String downloadId, long fileSize, boolean streaming) {
+        mTimeline = new InstallTimeline();
+        mTimeline.setDownloadId(downloadId);
+        mTimeline.setStartTime(System.currentTimeMillis());
+        mTimeline.setFileSize(fileSize);
+        mTimeline.setStreaming(streaming);
+        mPhase = PHASE_NONE;
+    }
+
+    boolean isStarted() {
+        return mTimeline != null;
+    }
+
+    void onApply() {
+        onPhase(PHASE_APPLY);
+    }
+
+    void onFinalizing() {
+        onPhase(PHASE_FINALIZING);
+    }
+
+    private void onPhase(int phase) {
+        if (mPhase == PHASE_SUSPENDED) {
+            // Late status update, counted once resumed
+            mPhaseBeforeSuspend = phase;
+        } else {
+            setPhase(phase);
+        }
+    }
+
+    void onSuspend() {
+        if (mTimeline == null || mPhase == PHASE_SUSPENDED) {
+            return;
+        }
+        mPhaseBeforeSuspend = mPhase;
+        setPhase(PHASE_SUSPENDED);
+        mTimeline.setSuspendCount(mTimeline.getSuspendCount() + 1);
+    }
+
+    void onResume() {
+        if (mPhase == PHASE_SUSPENDED) {
+            setPhase(mPhaseBeforeSuspend);
+        }
+    }
+
+    /**
+     * Stop measuring.
+     *
+     * @return the complete timeline, or null if nothing was being measured
+     */
+    InstallTimeline finish(int errorCode) {
+        if (mTimeline == null) {
+            return null;
+        }
+        setPhase(PHASE_NONE);
+        InstallTimeline timeline = mTimeline;
+        timeline.setEndTime(System.currentTimeMillis());
+        timeline.setErrorCode(errorCode);
+        mTimeline = null;
+        Log.d(TAG, "Installation of " + timeline.getDownloadId() + " done: apply " +
+                timeline.getApplyMillis() + " ms, finalizing " +
+                timeline.getFinalizingMillis() + " ms, suspended " +
+                timeline.getSuspendedMillis() + " ms, error " + errorCode);
+        return timeline;
+    }
+
+    /**
+     * Forget the current installation without recording it.
+     */
+    void discard() {
+        mTimeline = null;
+        mPhase = PHASE_NONE;
+    }
+
+    private void setPhase(int phase) {
+        if (mTimeline == null || phase == mPhase) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mPhaseStartMillis;
+        switch (mPhase) {
+            case PHASE_APPLY:
+                mTimeline.setApplyMillis(mTimeline.getApplyMillis() + elapsed);
+                break;
+            case PHASE_FINALIZING:
+                mTimeline.setFinalizingMillis(mTimeline.getFinalizingMillis() + elapsed);
+                break;
+            case PHASE_SUSPENDED:
+                mTimeline.setSuspendedMillis(mTimeline.getSuspendedMillis() + elapsed);
+                break;
+        }
+        mPhase = phase;
+        mPhaseStartMillis = now;
+    }
+}
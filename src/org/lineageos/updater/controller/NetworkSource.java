@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+/**
+ * Reports changes of the default network.
+ */
+interface NetworkSource {
+
+    interface Listener {
+        void onNetworkChanged(NetworkState state);
+    }
+
+    /**
+     * Start reporting changes. The listener is called on the main thread, once
+     * right away with the current state.
+     */
+    void register(Listener listener);
+
+    void unregister();
+}
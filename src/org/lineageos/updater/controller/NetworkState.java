@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+/**
+ * Properties of the default network relevant to downloads.
+ */
+final class NetworkState {
+
+    static final NetworkState DISCONNECTED = new NetworkState(-1, false, false, false);
+
+    final long networkHandle;
+    final boolean connected;
+    final boolean metered;
+    final boolean roaming;
+
+    NetworkState(long networkHandle, boolean connected, boolean metered, boolean roaming) {
+        this.networkHandle = networkHandle;
+        this.connected = connected;
+        this.metered = metered;
+        this.roaming = roaming;
+    }
+
+    boolean isSameNetwork(NetworkState other) {
+        return other != null && networkHandle == other.networkHandle;
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkState{handle=" + networkHandle + ", connected=" + connected +
+                ", metered=" + metered + ", roaming=" + roaming + "}";
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.format.Formatter;
+
+import androidx.core.app.NotificationCompat;
+
+import org.lineageos.updater.R;
+import org.lineageos.updater.misc.BuildInfoUtils;
+import org.lineageos.updater.misc.StringGenerator;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.text.DateFormat;
+import java.text.NumberFormat;
+
+/**
+ * Posts the ongoing notification from a background thread. Status changes are
+ * shown right away, progress at most once per interval and only if what the
+ * user sees changed.
+ *
+ * The builder is shared with the service: it must be modified while holding
+ * its lock, and shown with {@link #show()} rather than notify().
+ */
+class NotificationRenderer {
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mBuilder;
+    private final NotificationCompat.BigTextStyle mStyle;
+    private final int mId;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mRenderProgress = this::renderProgress;
+
+    // Guarded by mBuilder
+    private Progress mPendingProgress;
+    private boolean mRenderScheduled;
+    private long mLastRenderMillis;
+    private String mLastContent;
+
+    // Formatted strings, guarded by mBuilder
+    private final NumberFormat mPercentFormat = NumberFormat.getPercentInstance();
+    private final String[] mPercents = new String[101];
+    private long mTitleTimestamp = -1;
+    private String mTitle;
+    private long mSpeed = -1;
+    private String mSpeedText;
+    private long mEta = -1;
+    private String mEtaText;
+
+    private static class Progress {
+        final long mTimestamp;
+        final int mProgress;
+        final long mSpeed;
+        final long mEta;
+        // Not 0 for install progress
+        final int mInstallTextId;
+
+        Progress(long timestamp, int progress, long speed, long eta, int installTextId) {
+            mTimestamp = timestamp;
+            mProgress = progress;
+            mSpeed = speed;
+            mEta = eta;
+            mInstallTextId = installTextId;
+        }
+    }
+
+    NotificationRenderer(Context context, NotificationManager notificationManager,
+            NotificationCompat.Builder builder, NotificationCompat.BigTextStyle style, int id) {
+        mContext = context;
+        mNotificationManager = notificationManager;
+        mBuilder = builder;
+        mStyle = style;
+        mId = id;
+        mThread = new HandlerThread("NotificationRenderer", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    void quit() {
+        mThread.quitSafely();
+    }
+
+    /**
+     * Show the current content of the builder, dropping any progress that
+     * wasn't shown yet. The caller must hold the builder lock.
+     */
+    void show() {
+        mPendingProgress = null;
+        mLastContent = null;
+        final Notification notification = mBuilder.build();
+        mHandler.post(() -> mNotificationManager.notify(mId, notification));
+    }
+
+    /**
+     * Remove the notification, dropping any progress that wasn't shown yet.
+     */
+    void cancel() {
+        synchronized (mBuilder) {
+            mPendingProgress = null;
+            mLastContent = null;
+        }
+        mHandler.post(() -> mNotificationManager.cancel(mId));
+    }
+
+    void onDownloadProgress(UpdateInfo update) {
+        post(new Progress(update.getTimestamp(), update.getProgress(), update.getSpeed(),
+                update.getEta(), 0));
+    }
+
+    void onInstallProgress(UpdateInfo update) {
+        int textId = UpdateInstaller.isInstalling() ? R.string.dialog_prepare_zip_message :
+                update.getFinalizing() ? R.string.finalizing_package :
+                        R.string.preparing_ota_first_boot;
+        post(new Progress(update.getTimestamp(), update.getInstallProgress(), 0, 0, textId));
+    }
+
+    /**
+     * Set the title for the given update. The caller must hold the builder lock.
+     */
+    void setTitle(UpdateInfo update) {
+        setTitle(update.getTimestamp());
+    }
+
+    private void setTitle(long timestamp) {
+        if (timestamp != mTitleTimestamp) {
+            String buildDate = StringGenerator.getDateLocalizedUTC(mContext,
+                    DateFormat.MEDIUM, timestamp);
+            mTitle = mContext.getString(R.string.list_build_version_date,
+                    BuildInfoUtils.getBuildVersion(), buildDate);
+            mTitleTimestamp = timestamp;
+        }
+        mStyle.setBigContentTitle(mTitle);
+        mBuilder.setContentTitle(mTitle);
+    }
+
+    private void post(Progress progress) {
+        synchronized (mBuilder) {
+            mPendingProgress = progress;
+            if (mRenderScheduled) {
+                return;
+            }
+            mRenderScheduled = true;
+            long delay = mLastRenderMillis + PROGRESS_INTERVAL_MS - SystemClock.uptimeMillis();
+            mHandler.postDelayed(mRenderProgress, Math.max(delay, 0));
+        }
+    }
+
+    private void renderProgress() {
+        Notification notification;
+        synchronized (mBuilder) {
+            mRenderScheduled = false;
+            Progress progress = mPendingProgress;
+            mPendingProgress = null;
+            if (progress == null) {
+                return;
+            }
+            String content = progress.mInstallTextId != 0 ?
+                    applyInstallProgress(progress) : applyDownloadProgress(progress);
+            if (content.equals(mLastContent)) {
+                return;
+            }
+            mLastContent = content;
+            mLastRenderMillis = SystemClock.uptimeMillis();
+            notification = mBuilder.build();
+        }
+        mNotificationManager.notify(mId, notification);
+    }
+
+    private String applyDownloadProgress(Progress progress) {
+        mBuilder.setProgress(100, progress.mProgress, false);
+        String percent = getPercent(progress.mProgress);
+        if (progress.mSpeed != mSpeed) {
+            mSpeedText = Formatter.formatFileSize(mContext, progress.mSpeed);
+            mSpeed = progress.mSpeed;
+        }
+        String summary = percent + " • " + mSpeedText + "/s";
+        mStyle.setSummaryText(summary);
+        setTitle(progress.mTimestamp);
+        if (progress.mEta != mEta) {
+            mEtaText = StringGenerator.formatETA(mContext, progress.mEta * 1000);
+            mEta = progress.mEta;
+        }
+        String text = mContext.getString(R.string.text_download_speed, mEtaText, mSpeedText);
+        mStyle.bigText(text);
+        return mTitle + '\n' + summary + '\n' + text;
+    }
+
+    private String applyInstallProgress(Progress progress) {
+        setTitle(progress.mTimestamp);
+        mBuilder.setProgress(100, progress.mProgress, false);
+        String percent = getPercent(progress.mProgress);
+        mStyle.setSummaryText(percent);
+        String text = mContext.getString(progress.mInstallTextId);
+        mStyle.bigText(text);
+        return mTitle + '\n' + percent + '\n' + text;
+    }
+
+    private String getPercent(int progress) {
+        if (progress < 0 || progress > 100) {
+            return mPercentFormat.format(progress / 100.f);
+        }
+        if (mPercents[progress] == null) {
+            mPercents[progress] = mPercentFormat.format(progress / 100.f);
+        }
+        return mPercents[progress];
+    }
+}
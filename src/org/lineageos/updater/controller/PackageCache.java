@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the packages in the download directory within the budget chosen by the
+ * user, so that skipping updates doesn't fill the storage with old builds.
+ */
+class PackageCache {
+
+    private static final String TAG = "PackageCache";
+
+    // Incomplete downloads used since then are likely to be resumed soon
+    static final long RECENT_DOWNLOAD_MS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Order in which packages are deleted: those that can't be installed, then
+     * the incomplete downloads not used recently, then the verified packages,
+     * then the recent incomplete downloads. Within each group, the least
+     * recently used go first.
+     *
+     * @param now the current time, to tell apart the recent downloads
+     */
+    static Comparator<UpdateInfo> getEvictionOrder(long now) {
+        return (u1, u2) -> {
+            int c = Integer.compare(getRank(u1, now), getRank(u2, now));
+            if (c != 0) {
+                return c;
+            }
+            c = Long.compare(u1.getLastAccess(), u2.getLastAccess());
+            return c != 0 ? c : Long.compare(u1.getTimestamp(), u2.getTimestamp());
+        };
+    }
+
+    private final Context mContext;
+
+    PackageCache(Context context) {
+        mContext = context;
+    }
+
+    private static int getRank(UpdateInfo update, long now) {
+        if (!Utils.canInstall(update)) {
+            return 0;
+        }
+        if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED) {
+            return 2;
+        }
+        return now - update.getLastAccess() < RECENT_DOWNLOAD_MS ? 3 : 1;
+    }
+
+    /**
+     * @return the attributes of the package of the update, or null if it
+     *         doesn't exist
+     */
+    private static StructStat stat(UpdateInfo update) {
+        File file = update.getFile();
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private static String getKey(StructStat stat) {
+        return stat.st_dev + ":" + stat.st_ino;
+    }
+
+    /**
+     * @return the space taken by the packages of the updates. Packages shared
+     *         through hard links are counted once.
+     */
+    static long getUsedBytes(Collection<? extends UpdateInfo> updates) {
+        Set<String> counted = new HashSet<>();
+        long usedBytes = 0;
+        for (UpdateInfo update : updates) {
+            StructStat stat = stat(update);
+            if (stat != null && counted.add(getKey(stat))) {
+                usedBytes += stat.st_size;
+            }
+        }
+        return usedBytes;
+    }
+
+    long getBudget() {
+        return Utils.getPackageCacheBudget(mContext);
+    }
+
+    /**
+     * Choose the packages to delete to get back within the budget. The most
+     * recent package that can be installed is always kept, even if it alone
+     * exceeds the budget.
+     *
+     * @param candidates the updates whose package can be deleted
+     * @param usedBytes the space taken by all the packages, including those
+     *                  that can't be deleted
+     * @return the updates to delete, in order
+     */
+    <T extends UpdateInfo> List<T> getEvictions(Collection<T> candidates, long usedBytes) {
+        List<T> evictions = new ArrayList<>();
+        long budget = getBudget();
+        if (usedBytes <= budget) {
+            return evictions;
+        }
+
+        T newest = null;
+        for (T update : candidates) {
+            if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                    Utils.canInstall(update) &&
+                    (newest == null || update.getTimestamp() > newest.getTimestamp())) {
+                newest = update;
+            }
+        }
+
+        List<T> sorted = new ArrayList<>(candidates);
+        sorted.remove(newest);
+        sorted.sort(getEvictionOrder(System.currentTimeMillis()));
+        // A package shared by several updates is freed with its last link
+        Map<String, Long> links = new HashMap<>();
+        for (T update : sorted) {
+            if (usedBytes <= budget) {
+                break;
+            }
+            StructStat stat = stat(update);
+            if (stat == null) {
+                continue;
+            }
+            evictions.add(update);
+            String key = getKey(stat);
+            long remaining = links.getOrDefault(key, stat.st_nlink) - 1;
+            links.put(key, remaining);
+            if (remaining <= 0) {
+                usedBytes -= stat.st_size;
+            }
+        }
+        if (usedBytes > budget) {
+            Log.d(TAG, "Still using " + usedBytes + " bytes out of " + budget);
+        }
+        return evictions;
+    }
+}
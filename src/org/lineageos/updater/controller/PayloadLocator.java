@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.util.Log;
+
+import org.lineageos.updater.misc.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Finds the payload of an A/B package while the package is still being downloaded.
+ *
+ * The zip central directory is at the end of the file, so the local file headers
+ * are walked instead. Once the OTA metadata entry is complete, the streaming
+ * property files it lists give the position of payload.bin and
+ * payload_properties.txt within the package.
+ */
+class PayloadLocator {
+
+    private static final String TAG = "PayloadLocator";
+
+    private static final String METADATA_PATH = "META-INF/com/android/metadata";
+    private static final String[] PROPERTY_FILES_KEYS = {
+            "ota-streaming-property-files=",
+            "ota-property-files=",
+    };
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    // Don't walk the whole package if the metadata isn't near the beginning
+    private static final int MAX_ENTRIES = 16;
+
+    static final class Result {
+        final long payloadOffset;
+        final long payloadSize;
+        final long propertiesOffset;
+        final long propertiesSize;
+
+        private Result(long payloadOffset, long payloadSize, long propertiesOffset,
+                long propertiesSize) {
+            this.payloadOffset = payloadOffset;
+            this.payloadSize = payloadSize;
+            this.propertiesOffset = propertiesOffset;
+            this.propertiesSize = propertiesSize;
+        }
+    }
+
+    private final File mFile;
+
+    private long mNextHeaderOffset = 0;
+    private int mEntriesParsed = 0;
+    private boolean mGaveUp = false;
+
+    PayloadLocator(File file) {
+        mFile = file;
+    }
+
+    boolean hasGivenUp() {
+        return mGaveUp;
+    }
+
+    /**
+     * Try to locate the payload using the first bytes of the package
+     *
+     * @param available number of bytes of the package already written to disk
+     * @return the position of the payload, or null if more data is needed or the
+     *         payload can't be located (see hasGivenUp())
+     */
+    Result locate(long available) throws IOException {
+        if (mGaveUp) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            while (mEntriesParsed < MAX_ENTRIES) {
+                if (mNextHeaderOffset + LOCAL_HEADER_SIZE > available) {
+                    return null;
+                }
+                ByteBuffer header = read(raf, mNextHeaderOffset, LOCAL_HEADER_SIZE);
+                if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    return giveUp("Unexpected signature at " + mNextHeaderOffset);
+                }
+                int flags = header.getShort(6) & 0xffff;
+                int method = header.getShort(8) & 0xffff;
+                long compressedSize = header.getInt(18) & 0xffffffffL;
+                long uncompressedSize = header.getInt(22) & 0xffffffffL;
+                int nameLength = header.getShort(26) & 0xffff;
+                int extraLength = header.getShort(28) & 0xffff;
+
+                long dataOffset = mNextHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+                if (dataOffset > available) {
+                    return null;
+                }
+                if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+                    return giveUp("Entry sizes are stored after the data");
+                }
+
+                ByteBuffer nameAndExtra = read(raf, mNextHeaderOffset + LOCAL_HEADER_SIZE,
+                        nameLength + extraLength);
+                String name = new String(nameAndExtra.array(), 0, nameLength,
+                        StandardCharsets.UTF_8);
+                if (compressedSize == ZIP64_MAGIC) {
+                    compressedSize = getZip64CompressedSize(nameAndExtra, nameLength,
+                            extraLength, uncompressedSize == ZIP64_MAGIC);
+                    if (compressedSize < 0) {
+                        return giveUp("Invalid zip64 extra field for " + name);
+                    }
+                }
+
+                if (METADATA_PATH.equals(name)) {
+                    if (dataOffset + compressedSize > available) {
+                        return null;
+                    }
+                    byte[] data = read(raf, dataOffset, (int) compressedSize).array();
+                    if (method == METHOD_DEFLATED) {
+                        data = inflate(data, (int) uncompressedSize);
+                    } else if (method != METHOD_STORED) {
+                        return giveUp("Unsupported compression method " + method);
+                    }
+                    if (data == null) {
+                        return giveUp("Could not read the metadata");
+                    }
+                    Result result = parseMetadata(new String(data, StandardCharsets.UTF_8));
+                    return result != null ? result : giveUp("No property files in metadata");
+                }
+
+                mNextHeaderOffset = dataOffset + compressedSize;
+                mEntriesParsed++;
+            }
+        }
+        return giveUp("Metadata not found in the first " + MAX_ENTRIES + " entries");
+    }
+
+    private Result giveUp(String reason) {
+        Log.d(TAG, "Can't locate payload: " + reason);
+        mGaveUp = true;
+        return null;
+    }
+
+    private static ByteBuffer read(RandomAccessFile raf, long offset, int length)
+            throws IOException {
+        byte[] buffer = new byte[length];
+        raf.seek(offset);
+        raf.readFully(buffer);
+        return ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long getZip64CompressedSize(ByteBuffer nameAndExtra, int nameLength,
+            int extraLength, boolean hasUncompressedSize) {
+        int position = nameLength;
+        int end = nameLength + extraLength;
+        while (position + 4 <= end) {
+            int id = nameAndExtra.getShort(position) & 0xffff;
+            int size = nameAndExtra.getShort(position + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_ID) {
+                // The uncompressed size comes first, if present
+                int sizeOffset = position + 4 + (hasUncompressedSize ? 8 : 0);
+                return sizeOffset + 8 <= end ? nameAndExtra.getLong(sizeOffset) : -1;
+            }
+            position += 4 + size;
+        }
+        return -1;
+    }
+
+    private static byte[] inflate(byte[] data, int uncompressedSize) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[uncompressedSize];
+            int length = inflater.inflate(result);
+            return length == uncompressedSize ? result : null;
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Could not inflate metadata", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Result parseMetadata(String metadata) {
+        for (String line : metadata.split("\n")) {
+            for (String key : PROPERTY_FILES_KEYS) {
+                if (line.startsWith(key)) {
+                    Result result = parsePropertyFiles(line.substring(key.length()));
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Format: name:offset:size[,name:offset:size...], optionally padded with spaces
+    private static Result parsePropertyFiles(String value) {
+        long payloadOffset = -1;
+        long payloadSize = -1;
+        long propertiesOffset = -1;
+        long propertiesSize = -1;
+        for (String token : value.trim().split(",")) {
+            String[] parts = token.trim().split(":");
+            if (parts.length != 3) {
+                continue;
+            }
+            try {
+                if (Constants.AB_PAYLOAD_BIN_PATH.equals(parts[0])) {
+                    payloadOffset = Long.parseLong(parts[1]);
+                    payloadSize = Long.parseLong(parts[2]);
+                } else if (Constants.AB_PAYLOAD_PROPERTIES_PATH.equals(parts[0])) {
+                    propertiesOffset = Long.parseLong(parts[1]);
+                    propertiesSize = Long.parseLong(parts[2]);
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid property file entry " + token);
+            }
+        }
+        if (payloadOffset < 0 || payloadSize <= 0 || propertiesOffset < 0 ||
+                propertiesSize <= 0) {
+            return null;
+        }
+        return new Result(payloadOffset, payloadSize, propertiesOffset, propertiesSize);
+    }
+}
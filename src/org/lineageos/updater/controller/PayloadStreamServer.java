@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal HTTP server bound to the loopback interface that serves a file while it
+ * is still being written. Reads past the bytes downloaded so far block until the
+ * data is available, which lets update_engine apply a payload as it arrives.
+ */
+class PayloadStreamServer {
+
+    private static final String TAG = "PayloadStreamServer";
+
+    private static final String PATH = "/package.zip";
+    private static final int SOCKET_TIMEOUT_MS = 60000;
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private static final Pattern RANGE_PATTERN =
+            Pattern.compile("(?i)bytes=([0-9]+)-([0-9]*)");
+
+    private final File mFile;
+    private final long mTotalSize;
+
+    private final Object mLock = new Object();
+    private long mAvailableBytes;
+    private boolean mComplete;
+    private boolean mClosed;
+
+    private ServerSocket mServerSocket;
+
+    PayloadStreamServer(File file, long totalSize) {
+        mFile = file;
+        mTotalSize = totalSize;
+    }
+
+    /**
+     * Start accepting connections
+     *
+     * @return the URL the file is served at
+     */
+    String start() throws IOException {
+        mServerSocket = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::acceptConnections, TAG);
+        acceptThread.start();
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + PATH;
+    }
+
+    void setAvailableBytes(long availableBytes) {
+        synchronized (mLock) {
+            if (availableBytes > mAvailableBytes) {
+                mAvailableBytes = availableBytes;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    void setComplete() {
+        synchronized (mLock) {
+            mAvailableBytes = mTotalSize;
+            mComplete = true;
+            mLock.notifyAll();
+        }
+    }
+
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close server socket", e);
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    if (!mClosed) {
+                        Log.e(TAG, "Stopped accepting connections", e);
+                    }
+                }
+                return;
+            }
+            new Thread(() -> serve(socket), TAG).start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(SOCKET_TIMEOUT_MS);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+
+            String request = readRequestHeader(in);
+            if (request == null) {
+                return;
+            }
+            String[] lines = request.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            boolean head = requestLine.length > 1 && "HEAD".equals(requestLine[0]);
+            if (requestLine.length < 2 || !(head || "GET".equals(requestLine[0])) ||
+                    !PATH.equals(requestLine[1])) {
+                writeHeader(out, "404 Not Found", 0, null);
+                return;
+            }
+
+            long start = 0;
+            long end = mTotalSize - 1;
+            boolean partial = false;
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf(':');
+                if (separator < 0 || !"range".equalsIgnoreCase(
+                        lines[i].substring(0, separator).trim())) {
+                    continue;
+                }
+                Matcher matcher = RANGE_PATTERN.matcher(lines[i].substring(separator + 1).trim());
+                if (matcher.matches()) {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(end, Long.parseLong(matcher.group(2)));
+                    }
+                    partial = true;
+                }
+            }
+            if (start > end) {
+                writeHeader(out, "416 Range Not Satisfiable", 0, null);
+                return;
+            }
+
+            long length = end - start + 1;
+            String contentRange = partial ? String.format(Locale.ROOT, "bytes %d-%d/%d",
+                    start, end, mTotalSize) : null;
+            writeHeader(out, partial ? "206 Partial Content" : "200 OK", length, contentRange);
+            if (!head) {
+                writeBody(out, start, length);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error while serving the package", e);
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while waiting for data");
+        }
+    }
+
+    private static String readRequestHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            header.append((char) c);
+            int length = header.length();
+            if (length >= 4 && header.charAt(length - 4) == '\r' &&
+                    header.charAt(length - 3) == '\n' && header.charAt(length - 2) == '\r' &&
+                    header.charAt(length - 1) == '\n') {
+                return header.toString();
+            }
+            if (length > MAX_HEADER_SIZE) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private static void writeHeader(OutputStream out, String status, long contentLength,
+            String contentRange) throws IOException {
+        StringBuilder header = new StringBuilder();
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+        header.append("Content-Length: ").append(contentLength).append("\r\n");
+        header.append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            header.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void writeBody(OutputStream out, long offset, long length)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[64 * 1024];
+        long position = offset;
+        long end = offset + length;
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            while (position < end) {
+                long available = waitForData(position);
+                if (available < 0) {
+                    return;
+                }
+                int count = (int) Math.min(buffer.length, Math.min(available, end) - position);
+                raf.seek(position);
+                count = raf.read(buffer, 0, count);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+                out.write(buffer, 0, count);
+                position += count;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the number of bytes available, or -1 if the server was closed
+     */
+    private long waitForData(long position) throws InterruptedException {
+        synchronized (mLock) {
+            while (!mClosed && !mComplete && mAvailableBytes <= position) {
+                mLock.wait();
+            }
+            return mClosed ? -1 : mAvailableBytes;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.lineageos.updater.download.ConnectionPool;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies an A/B package while it's being downloaded. The payload is served to
+ * update_engine from the partially downloaded file through PayloadStreamServer,
+ * so the installation completes shortly after the download instead of starting
+ * only once the package has been verified.
+ */
+class PipelinedInstall {
+
+    private static final String TAG = "PipelinedInstall";
+
+    // Don't scan the package on every read
+    private static final long LOCATE_INTERVAL_BYTES = 64 * 1024;
+
+    private final Context mContext;
+    private final UpdaterController mUpdaterController;
+    private final String mDownloadId;
+    private final String mDownloadUrl;
+    private final PayloadLocator mPayloadLocator;
+    private final PayloadStreamServer mServer;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private String mServerUrl;
+    private boolean mLocating = true;
+    private long mNextLocateAttempt = 0;
+    private volatile boolean mInstallStarted = false;
+    private volatile boolean mAborted = false;
+
+    PipelinedInstall(Context context, UpdaterController controller, UpdateInfo update) {
+        mContext = context.getApplicationContext();
+        mUpdaterController = controller;
+        mDownloadId = update.getDownloadId();
+        mDownloadUrl = update.getDownloadUrl();
+        mPayloadLocator = new PayloadLocator(update.getFile());
+        mServer = new PayloadStreamServer(update.getFile(), update.getFileSize());
+    }
+
+    boolean start() {
+        try {
+            mServerUrl = mServer.start();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start payload server", e);
+            return false;
+        }
+    }
+
+    /**
+     * Called from the download thread every time new data has been written
+     */
+    void onBytesAvailable(long bytes) {
+        mServer.setAvailableBytes(bytes);
+        if (!mLocating || bytes < mNextLocateAttempt) {
+            return;
+        }
+        mNextLocateAttempt = bytes + LOCATE_INTERVAL_BYTES;
+        try {
+            PayloadLocator.Result result = mPayloadLocator.locate(bytes);
+            if (result != null) {
+                mLocating = false;
+                startInstallAsync(result);
+            } else if (mPayloadLocator.hasGivenUp()) {
+                Log.d(TAG, "Falling back to installing after the download");
+                mLocating = false;
+                mServer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read the downloaded data", e);
+            mLocating = false;
+            mServer.close();
+        }
+    }
+
+    void onDownloadComplete() {
+        mServer.setComplete();
+    }
+
+    boolean isInstallStarted() {
+        return mInstallStarted;
+    }
+
+    /**
+     * Stop serving the package. Must be called once the download has been verified.
+     */
+    void finish() {
+        mServer.close();
+    }
+
+    /**
+     * Stop serving the package and revert the installation, if started
+     */
+    void abort() {
+        mAborted = true;
+        mServer.close();
+        mMainHandler.post(() -> {
+            if (mInstallStarted) {
+                mInstallStarted = false;
+                ABUpdateInstaller.getInstance(mContext, mUpdaterController).abortStreaming();
+            }
+        });
+    }
+
+    private void startInstallAsync(final PayloadLocator.Result result) {
+        new Thread(() -> {
+            final String[] headerKeyValuePairs;
+            try {
+                headerKeyValuePairs = fetchPayloadProperties(result);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not fetch payload properties", e);
+                return;
+            }
+            mMainHandler.post(() -> {
+                if (mAborted) {
+                    return;
+                }
+                Log.d(TAG, "Starting installation of " + mDownloadId + " while downloading");
+                mInstallStarted = ABUpdateInstaller.getInstance(mContext, mUpdaterController)
+                        .installStreaming(mDownloadId, mServerUrl, result.payloadOffset,
+                                result.payloadSize, headerKeyValuePairs);
+            });
+        }).start();
+    }
+
+    // The properties follow the payload in the package, get them from the server
+    private String[] fetchPayloadProperties(PayloadLocator.Result result) throws IOException {
+        ConnectionPool pool = ConnectionPool.getInstance();
+        HttpURLConnection connection = pool.open(mDownloadUrl);
+        boolean consumed = false;
+        try {
+            long end = result.propertiesOffset + result.propertiesSize - 1;
+            connection.setRequestProperty("Range",
+                    "bytes=" + result.propertiesOffset + "-" + end);
+            connection.setReadTimeout(10000);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Server replied with " + connection.getResponseCode());
+            }
+            List<String> lines = new ArrayList<>();
+            try (InputStream is = connection.getInputStream();
+                 InputStreamReader isr = new InputStreamReader(is);
+                 BufferedReader br = new BufferedReader(isr)) {
+                for (String line; (line = br.readLine()) != null;) {
+                    lines.add(line);
+                }
+            }
+            consumed = true;
+            return lines.toArray(new String[0]);
+        } finally {
+            if (consumed) {
+                pool.releaseConsumed();
+            } else {
+                pool.discard(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.os.SystemProperties;
+import android.os.storage.StorageManager;
+import android.util.Log;
+
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Decides whether a download can start given the space left in the download
+ * directory, so that it fails before starting rather than when the disk is full.
+ */
+class StorageAdmission {
+
+    private static final String TAG = "StorageAdmission";
+
+    // Space left to the rest of the system once the download is complete
+    private static final long SAFETY_MARGIN_BYTES = 64L * 1024 * 1024;
+
+    private final Context mContext;
+    private final File mDownloadRoot;
+    private final StorageManager mStorageManager;
+
+    StorageAdmission(Context context, File downloadRoot) {
+        mContext = context;
+        mDownloadRoot = downloadRoot;
+        mStorageManager = context.getSystemService(StorageManager.class);
+    }
+
+    /**
+     * @return the bytes still needed to download and install the update,
+     *         including the copy made for uncrypt if it's going to be needed
+     */
+    long getRequiredBytes(UpdateInfo update, File destination) {
+        long size = update.getFileSize();
+        if (size <= 0) {
+            return 0;
+        }
+        long required = size;
+        if (destination != null && destination.exists()) {
+            required = Math.max(0, size - destination.length());
+        }
+        if (!Utils.isABDevice() && SystemProperties.get(Constants.PROP_RECOVERY_UPDATE, "")
+                .equals("true") && Utils.isEncrypted(mContext, mDownloadRoot)) {
+            required += size;
+        }
+        return required;
+    }
+
+    boolean hasSpaceFor(long bytes) {
+        return mDownloadRoot.getUsableSpace() >= bytes + SAFETY_MARGIN_BYTES;
+    }
+
+    /**
+     * Make sure the given amount of bytes can be written. If needed, the system
+     * is asked to clear the cached data of the applications.
+     *
+     * @return true if there's enough space
+     */
+    boolean reserve(long bytes) {
+        if (bytes <= 0 || hasSpaceFor(bytes)) {
+            return true;
+        }
+        try {
+            UUID uuid = mStorageManager.getUuidForPath(mDownloadRoot);
+            mStorageManager.allocateBytes(uuid, bytes + SAFETY_MARGIN_BYTES);
+            Log.d(TAG, "Cleared cached data to make room for " + bytes + " bytes");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Not enough space for " + bytes + " bytes", e);
+            return false;
+        }
+    }
+
+    /**
+     * Files in the download directory not used by any of the given updates, which
+     * are the first to go when space is needed
+     */
+    List<File> getOrphanFiles(Collection<? extends UpdateInfo> updates) {
+        List<File> orphans = new ArrayList<>();
+        File[] files = mDownloadRoot.listFiles();
+        if (files == null) {
+            return orphans;
+        }
+        Set<String> used = new HashSet<>();
+        for (UpdateInfo update : updates) {
+            File file = update.getFile();
+            if (file != null) {
+                used.add(file.getName());
+                used.add(file.getName() + Constants.UNCRYPT_FILE_EXT);
+            }
+        }
+        for (File file : files) {
+            if (file.isFile() && !used.contains(file.getName())) {
+                orphans.add(file);
+            }
+        }
+        return orphans;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * DeviceStateSource backed by the thermal status listener of PowerManager and
+ * by the battery and screen broadcasts.
+ */
+class SystemDeviceStateSource implements DeviceStateSource {
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+
+    private Listener mListener;
+    private BroadcastReceiver mReceiver;
+    private PowerManager.OnThermalStatusChangedListener mThermalListener;
+
+    private int mThermalStatus = PowerManager.THERMAL_STATUS_NONE;
+    private int mBatteryLevel = 100;
+    private boolean mCharging;
+    private boolean mInteractive;
+
+    SystemDeviceStateSource(Context context) {
+        mContext = context.getApplicationContext();
+        mPowerManager = context.getSystemService(PowerManager.class);
+    }
+
+    @Override
+    public void register(Listener listener) {
+        if (mListener != null) {
+            return;
+        }
+        mListener = listener;
+        mInteractive = mPowerManager.isInteractive();
+
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                    onBatteryChanged(intent);
+                } else {
+                    mInteractive = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                }
+                notifyListener();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        // The battery broadcast is sticky, the current state is returned right away
+        Intent battery = mContext.registerReceiver(mReceiver, filter);
+        if (battery != null) {
+            onBatteryChanged(battery);
+        }
+
+        // Older versions have no thermal status, the device is never considered hot
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mThermalStatus = mPowerManager.getCurrentThermalStatus();
+            mThermalListener = status -> {
+                mThermalStatus = status;
+                notifyListener();
+            };
+            mPowerManager.addThermalStatusListener(mThermalListener);
+        }
+
+        notifyListener();
+    }
+
+    @Override
+    public void unregister() {
+        if (mListener == null) {
+            return;
+        }
+        mContext.unregisterReceiver(mReceiver);
+        mReceiver = null;
+        if (mThermalListener != null) {
+            mPowerManager.removeThermalStatusListener(mThermalListener);
+            mThermalListener = null;
+        }
+        mListener = null;
+    }
+
+    private void onBatteryChanged(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+            mBatteryLevel = level * 100 / scale;
+        }
+        mCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void notifyListener() {
+        if (mListener != null) {
+            mListener.onDeviceStateChanged(new DeviceState(mThermalStatus, mBatteryLevel,
+                    mCharging, mInteractive));
+        }
+    }
+}
@@ -25,6 +25,7 @@ import androidx.preference.PreferenceManager;
 
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.FileUtils;
+import org.lineageos.updater.misc.Tracer;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
@@ -76,6 +77,7 @@ class UpdateInstaller {
             return;
         }
 
+        Tracer.beginStage(downloadId, Tracer.STAGE_INSTALL);
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
@@ -108,6 +110,7 @@ class UpdateInstaller {
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
         }
+        Tracer.endUpdate(downloadId);
     }
 
     private synchronized void prepareForUncryptAndInstall(UpdateInfo update) {
@@ -165,6 +168,7 @@ class UpdateInstaller {
                         mPrepareUpdateThread = null;
                         sInstallingUpdate = null;
                     }
+                    Tracer.endUpdate(update.getDownloadId());
                     mUpdaterController.notifyUpdateChange(update.getDownloadId());
                 }
             }
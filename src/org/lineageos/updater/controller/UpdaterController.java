@@ -17,16 +17,31 @@ package org.lineageos.updater.controller;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.os.UpdateEngine;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.download.MirrorScoreboard;
+import org.lineageos.updater.download.SpeedEstimator;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.Metrics;
+import org.lineageos.updater.misc.Tracer;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.IncrementalPackage;
+import org.lineageos.updater.model.InstallTimeline;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
@@ -40,7 +55,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class UpdaterController {
+public class UpdaterController implements DownloadNetworkScheduler.Downloads {
 
     public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
     public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
@@ -52,7 +67,13 @@ public class UpdaterController {
 
     private static UpdaterController sUpdaterController;
 
-    private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int PROGRESS_SAMPLE_INTERVAL_MS = 500;
+
+    // Leave most of the bandwidth to whatever else the device does
+    private static final long PREFETCH_MAX_SPEED = 2 * 1024 * 1024;
+
+    // Give the cancelled download thread time to exit before reconnecting
+    private static final long RECONNECT_DELAY_MS = 2000;
 
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
@@ -61,6 +82,13 @@ public class UpdaterController {
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
+    private final StorageAdmission mStorageAdmission;
+    private final PackageCache mPackageCache;
+    private final SpeedEstimator.Model mSpeedModel;
+    private final int mDownloadBufferSize;
+
+    private final Handler mProgressHandler = new Handler(Looper.getMainLooper());
+    private boolean mProgressSamplerRunning = false;
 
     private int mActiveDownloads = 0;
     private Set<String> mVerifyingUpdates = new HashSet<>();
@@ -80,6 +108,12 @@ public class UpdaterController {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
         mDownloadRoot = Utils.getDownloadPath(context);
+        mStorageAdmission = new StorageAdmission(context, mDownloadRoot);
+        mPackageCache = new PackageCache(context);
+        mSpeedModel = SpeedEstimator.getModel(
+                context.getString(R.string.config_downloadSpeedModel));
+        mDownloadBufferSize = context.getResources().getInteger(
+                R.integer.config_downloadBufferSize);
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater");
         mWakeLock.setReferenceCounted(false);
@@ -90,11 +124,15 @@ public class UpdaterController {
         for (Update update : mUpdatesDbHelper.getUpdates()) {
             addUpdate(update, false);
         }
+        trimPackageCache();
     }
 
     private class DownloadEntry {
         final Update mUpdate;
+        final DownloadProgress mProgress = new DownloadProgress();
         DownloadClient mDownloadClient;
+        volatile PipelinedInstall mPipelinedInstall;
+        boolean mPrefetch;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
@@ -149,6 +187,8 @@ public class UpdaterController {
         }
         entry.mDownloadClient = downloadClient;
         mActiveDownloads++;
+        Tracer.beginStage(entry.mUpdate.getDownloadId(), Tracer.STAGE_DOWNLOAD);
+        startProgressSampler();
     }
 
     private void removeDownloadClient(DownloadEntry entry) {
@@ -156,7 +196,9 @@ public class UpdaterController {
             return;
         }
         entry.mDownloadClient = null;
+        entry.mPrefetch = false;
         mActiveDownloads--;
+        Tracer.endStage(entry.mUpdate.getDownloadId(), Tracer.STAGE_DOWNLOAD);
     }
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
@@ -178,7 +220,8 @@ public class UpdaterController {
                 }
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
+                UpdateInfo snapshot = update.snapshot();
+                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(snapshot,
                         SQLiteDatabase.CONFLICT_REPLACE)).start();
                 notifyUpdateChange(downloadId);
             }
@@ -186,7 +229,14 @@ public class UpdaterController {
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
-                Update update = mDownloads.get(downloadId).mUpdate;
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry.mPipelinedInstall != null) {
+                    entry.mPipelinedInstall.onDownloadComplete();
+                }
+                Update update = entry.mUpdate;
+                update.setDownloadedBytes(destination.length());
+                UpdateInfo snapshot = update.snapshot();
+                new Thread(() -> mUpdatesDbHelper.changeUpdateDownloadedBytes(snapshot)).start();
                 update.setStatus(UpdateStatus.VERIFYING);
                 removeDownloadClient(mDownloads.get(downloadId));
                 verifyUpdateAsync(downloadId);
@@ -202,8 +252,19 @@ public class UpdaterController {
                     // Already notified
                 } else {
                     Log.e(TAG, "Download failed");
-                    removeDownloadClient(mDownloads.get(downloadId));
-                    update.setStatus(UpdateStatus.PAUSED_ERROR);
+                    DownloadEntry entry = mDownloads.get(downloadId);
+                    // The sampler may not have seen the last bytes written yet
+                    long downloadedBytes = entry.mProgress.getPublishedBytesRead();
+                    if (downloadedBytes < 0) {
+                        downloadedBytes = getDownloadedBytes(update);
+                    }
+                    mProgressHandler.post(() -> saveDownloadedBytes(entry));
+                    abortPipelinedInstall(entry);
+                    removeDownloadClient(entry);
+                    // Tell apart a full disk, it won't help to just try again
+                    long remaining = update.getFileSize() - downloadedBytes;
+                    update.setStatus(remaining > 0 && !mStorageAdmission.hasSpaceFor(remaining) ?
+                            UpdateStatus.INSUFFICIENT_SPACE : UpdateStatus.PAUSED_ERROR);
                     notifyUpdateChange(downloadId);
                 }
                 tryReleaseWakelock();
@@ -211,57 +272,148 @@ public class UpdaterController {
         };
     }
 
-    private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
+    private DownloadClient.ProgressListener getProgressListener(final DownloadEntry entry) {
+        // Called on every read, only publish the values for the sampler
         return new DownloadClient.ProgressListener() {
-            private long mLastUpdate = 0;
-            private int mProgress = 0;
-
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta,
                     boolean done) {
-                Update update = mDownloads.get(downloadId).mUpdate;
-                if (contentLength <= 0) {
-                    if (update.getFileSize() <= 0) {
-                        return;
-                    } else {
-                        contentLength = update.getFileSize();
-                    }
-                }
-                if (contentLength <= 0) {
-                    return;
-                }
-                final long now = SystemClock.elapsedRealtime();
-                int progress = Math.round(bytesRead * 100 / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
-                    mProgress = progress;
-                    mLastUpdate = now;
-                    update.setProgress(progress);
-                    update.setEta(eta);
-                    update.setSpeed(speed);
-                    notifyDownloadProgress(downloadId);
+                PipelinedInstall pipelinedInstall = entry.mPipelinedInstall;
+                if (pipelinedInstall != null) {
+                    pipelinedInstall.onBytesAvailable(bytesRead);
                 }
+                entry.mProgress.publish(bytesRead, contentLength, speed, eta);
             }
         };
     }
 
+    private final Runnable mProgressSampler = new Runnable() {
+        @Override
+        public void run() {
+            boolean sampled = sampleProgress();
+            // Keep going until the last values published have been reported
+            if (mActiveDownloads > 0 || sampled) {
+                mProgressHandler.postDelayed(this, PROGRESS_SAMPLE_INTERVAL_MS);
+            } else {
+                mProgressSamplerRunning = false;
+            }
+        }
+    };
+
+    private void startProgressSampler() {
+        mProgressHandler.post(() -> {
+            if (!mProgressSamplerRunning) {
+                mProgressSamplerRunning = true;
+                mProgressHandler.postDelayed(mProgressSampler, PROGRESS_SAMPLE_INTERVAL_MS);
+            }
+        });
+    }
+
+    private boolean sampleProgress() {
+        boolean sampled = false;
+        for (DownloadEntry entry : mDownloads.values()) {
+            DownloadProgress progress = entry.mProgress;
+            if (!progress.sample()) {
+                continue;
+            }
+            sampled = true;
+            Update update = entry.mUpdate;
+            long contentLength = progress.getContentLength();
+            if (contentLength <= 0) {
+                contentLength = update.getFileSize();
+            }
+            if (contentLength <= 0) {
+                continue;
+            }
+            int previousProgress = update.getProgress();
+            update.setDownloadedBytes(progress.getBytesRead());
+            update.setDownloadProgress((int) (progress.getBytesRead() * 100 / contentLength),
+                    progress.getSpeed(), progress.getEta());
+            if (update.getProgress() != previousProgress) {
+                // The length of the file can't tell how much was downloaded
+                UpdateInfo snapshot = update.snapshot();
+                new Thread(() -> mUpdatesDbHelper.changeUpdateDownloadedBytes(snapshot)).start();
+            }
+            notifyDownloadProgress(update.getDownloadId());
+        }
+        return sampled;
+    }
+
+    /**
+     * Store the latest progress published by the download, call from the main thread
+     */
+    private void saveDownloadedBytes(DownloadEntry entry) {
+        if (entry.mProgress.sample()) {
+            entry.mUpdate.setDownloadedBytes(entry.mProgress.getBytesRead());
+        }
+        final UpdateInfo snapshot = entry.mUpdate.snapshot();
+        new Thread(() -> mUpdatesDbHelper.changeUpdateDownloadedBytes(snapshot)).start();
+    }
+
+    /**
+     * @return the bytes downloaded, or the length of the file for downloads
+     *         started before the progress was tracked
+     */
+    private static long getDownloadedBytes(Update update) {
+        if (update.getDownloadedBytes() >= 0) {
+            return update.getDownloadedBytes();
+        }
+        File file = update.getFile();
+        return file != null && file.exists() ? file.length() : 0;
+    }
+
     private void verifyUpdateAsync(final String downloadId) {
         mVerifyingUpdates.add(downloadId);
+        Tracer.beginStage(downloadId, Tracer.STAGE_VERIFY);
         new Thread(() -> {
             Update update = mDownloads.get(downloadId).mUpdate;
             File file = update.getFile();
-            if (file.exists() && verifyPackage(file)) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            long start = SystemClock.elapsedRealtime();
+            boolean verified = file.exists() && verifyPackage(file);
+            boolean installStarted = entry.mPipelinedInstall != null &&
+                    entry.mPipelinedInstall.isInstallStarted();
+            Metrics.getInstance().histogram(Metrics.VERIFICATION_TIME_MS)
+                    .record(SystemClock.elapsedRealtime() - start);
+            if (verified) {
                 file.setReadable(true, false);
                 update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                mUpdatesDbHelper.changeUpdateStatus(update);
-                update.setStatus(UpdateStatus.VERIFIED);
+                update.setLastAccess(System.currentTimeMillis());
+                UpdateInfo snapshot = update.snapshot();
+                mUpdatesDbHelper.changeUpdateStatus(snapshot);
+                mUpdatesDbHelper.changeUpdateLastAccess(snapshot);
+                if (entry.mPipelinedInstall != null) {
+                    entry.mPipelinedInstall.finish();
+                }
+                if (isWaitingForReboot(downloadId)) {
+                    // The package was installed while being downloaded
+                    update.setStatus(UpdateStatus.INSTALLED);
+                } else if (installStarted) {
+                    update.setStatus(UpdateStatus.INSTALLING);
+                } else {
+                    update.setStatus(UpdateStatus.VERIFIED);
+                }
+                entry.mPipelinedInstall = null;
             } else {
+                Metrics.getInstance().counter(Metrics.VERIFICATION_FAILURES).increment();
+                abortPipelinedInstall(entry);
                 update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
                 mUpdatesDbHelper.removeUpdate(downloadId);
                 update.setProgress(0);
+                update.setDownloadedBytes(0);
                 update.setStatus(UpdateStatus.VERIFICATION_FAILED);
             }
             mVerifyingUpdates.remove(downloadId);
+            if (!verified) {
+                Tracer.endUpdate(downloadId);
+            } else if (installStarted) {
+                // The installation might have completed already
+                Tracer.endFinalStage(downloadId, Tracer.STAGE_VERIFY);
+            } else {
+                Tracer.endStage(downloadId, Tracer.STAGE_VERIFY);
+            }
             notifyUpdateChange(downloadId);
+            mProgressHandler.post(this::trimPackageCache);
         }).start();
     }
 
@@ -282,6 +434,32 @@ public class UpdaterController {
         }
     }
 
+    private boolean isPipelinedInstallEnabled() {
+        if (!Utils.isABDevice()) {
+            return false;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return preferences.getBoolean(Constants.PREF_AB_PIPELINED_INSTALL, false);
+    }
+
+    private void tryStartPipelinedInstall(DownloadEntry entry) {
+        if (entry.mPrefetch || !isPipelinedInstallEnabled() || isInstallingUpdate() ||
+                entry.mUpdate.getFileSize() <= 0) {
+            return;
+        }
+        PipelinedInstall pipelinedInstall = new PipelinedInstall(mContext, this, entry.mUpdate);
+        if (pipelinedInstall.start()) {
+            entry.mPipelinedInstall = pipelinedInstall;
+        }
+    }
+
+    private void abortPipelinedInstall(DownloadEntry entry) {
+        if (entry.mPipelinedInstall != null) {
+            entry.mPipelinedInstall.abort();
+            entry.mPipelinedInstall = null;
+        }
+    }
+
     private boolean fixUpdateStatus(Update update) {
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.VERIFIED:
@@ -291,8 +469,9 @@ public class UpdaterController {
                     return false;
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
+                    update.setDownloadedBytes(getDownloadedBytes(update));
                     int progress = Math.round(
-                            update.getFile().length() * 100 / update.getFileSize());
+                            update.getDownloadedBytes() * 100 / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -309,7 +488,7 @@ public class UpdaterController {
         }
     }
 
-    public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
+    public void setUpdatesAvailableOnline(Set<String> downloadIds, boolean purgeList) {
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
             boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
@@ -336,10 +515,19 @@ public class UpdaterController {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
             Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
-            updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+            updateAdded.setIncrementals(updateInfo.getIncrementals());
+            if (updateAdded.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN &&
+                    !isDownloading(updateAdded.getDownloadId())) {
+                selectPackage(updateAdded, updateInfo);
+            } else {
+                updateAdded.setDownloadUrl(getDownloadUrl(updateAdded, updateInfo));
+            }
             return false;
         }
         Update update = new Update(updateInfo);
+        if (availableOnline) {
+            selectPackage(update, updateInfo);
+        }
         if (!fixUpdateStatus(update) && !availableOnline) {
             update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
             deleteUpdateAsync(update);
@@ -351,26 +539,78 @@ public class UpdaterController {
         return true;
     }
 
+    /**
+     * Make the update point to the smallest package that can be installed on top
+     * of the current build.
+     */
+    private void selectPackage(Update update, UpdateInfo updateInfo) {
+        IncrementalPackage incremental = Utils.getApplicableIncremental(updateInfo);
+        if (incremental != null) {
+            Log.d(TAG, "Using incremental package " + incremental.getName() + " for " +
+                    updateInfo.getDownloadId());
+            update.setName(incremental.getName());
+            update.setDownloadUrl(incremental.getDownloadUrl());
+            update.setFileSize(incremental.getFileSize());
+            update.setPackageHash(incremental.getDownloadId());
+        } else {
+            update.setName(updateInfo.getName());
+            update.setDownloadUrl(updateInfo.getDownloadUrl());
+            update.setFileSize(updateInfo.getFileSize());
+            update.setPackageHash(updateInfo.getDownloadId());
+        }
+    }
+
+    /**
+     * Get the up-to-date URL of the package an update is already being downloaded
+     * from. The package is identified by the hash stored when the download started,
+     * or by its size for downloads stored before hashes were.
+     */
+    private static String getDownloadUrl(Update update, UpdateInfo updateInfo) {
+        String hash = update.getPackageHash();
+        for (IncrementalPackage incremental : updateInfo.getIncrementals()) {
+            if (hash != null ? hash.equals(incremental.getDownloadId()) :
+                    incremental.getFileSize() == update.getFileSize()) {
+                return incremental.getDownloadUrl();
+            }
+        }
+        return updateInfo.getDownloadUrl();
+    }
+
     public boolean startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return false;
         }
         Update update = mDownloads.get(downloadId).mUpdate;
-        File destination = new File(mDownloadRoot, update.getName());
-        if (destination.exists()) {
-            destination = Utils.appendSequentialNumber(destination);
-            Log.d(TAG, "Changing name with " + destination.getName());
+        File destination = getDestination(update);
+        if (reuseVerifiedPackage(update, destination)) {
+            return true;
+        }
+        // Not used by any update, don't write through a link to another file
+        if (destination.exists() && !destination.delete()) {
+            Log.e(TAG, "Could not delete " + destination.getAbsolutePath());
+        }
+        if (!admitDownload(update, destination)) {
+            update.setStatus(UpdateStatus.INSUFFICIENT_SPACE);
+            notifyUpdateChange(downloadId);
+            return false;
         }
         update.setFile(destination);
+        update.setDownloadedBytes(0);
+        markUsed(update);
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
                     .setUrl(update.getDownloadUrl())
                     .setDestination(update.getFile())
                     .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
+                    .setProgressListener(getProgressListener(mDownloads.get(downloadId)))
                     .setUseDuplicateLinks(true)
+                    .setMirrorScoreboard(MirrorScoreboard.getInstance(mContext))
+                    .setBufferSize(mDownloadBufferSize)
+                    .setSpeedModel(mSpeedModel)
+                    .setPreallocate(true, update.getFileSize())
+                    .setMaxSpeed(mDownloads.get(downloadId).mPrefetch ? PREFETCH_MAX_SPEED : 0)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -379,6 +619,7 @@ public class UpdaterController {
             return false;
         }
         addDownloadClient(mDownloads.get(downloadId), downloadClient);
+        tryStartPipelinedInstall(mDownloads.get(downloadId));
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -386,6 +627,183 @@ public class UpdaterController {
         return true;
     }
 
+    /**
+     * @return where to store the package of the update: its name, unless another
+     *         update uses it, in which case the download ID tells them apart
+     */
+    private File getDestination(Update update) {
+        File destination = new File(mDownloadRoot, update.getName());
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update other = entry.mUpdate;
+            if (other != update && destination.equals(other.getFile()) &&
+                    (destination.exists() || isDownloading(other.getDownloadId()))) {
+                String name = update.getName();
+                int extension = name.lastIndexOf('.');
+                if (extension <= 0) {
+                    extension = name.length();
+                }
+                return new File(mDownloadRoot, name.substring(0, extension) + "-" +
+                        update.getDownloadId() + name.substring(extension));
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * If another update has already downloaded and verified a package with the
+     * same hash, link it to the destination instead of downloading it again.
+     * Each update gets its own link, so that they can be deleted independently.
+     *
+     * @return true if the update now has a verified package
+     */
+    private boolean reuseVerifiedPackage(Update update, File destination) {
+        String hash = update.getPackageHash();
+        if (hash == null) {
+            return false;
+        }
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update other = entry.mUpdate;
+            if (other == update || !hash.equals(other.getPackageHash()) ||
+                    other.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED ||
+                    other.getFile() == null || !other.getFile().exists()) {
+                continue;
+            }
+            try {
+                if (destination.exists() && !destination.delete()) {
+                    Log.e(TAG, "Could not delete " + destination.getAbsolutePath());
+                    return false;
+                }
+                Os.link(other.getFile().getAbsolutePath(), destination.getAbsolutePath());
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Could not link " + other.getFile().getAbsolutePath(), e);
+                return false;
+            }
+            Log.d(TAG, "Reusing the package of " + other.getDownloadId() + " for " +
+                    update.getDownloadId());
+            update.setFile(destination);
+            update.setFileSize(destination.length());
+            update.setDownloadedBytes(destination.length());
+            update.setProgress(100);
+            update.setLastAccess(System.currentTimeMillis());
+            update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+            update.setStatus(UpdateStatus.VERIFIED);
+            UpdateInfo snapshot = update.snapshot();
+            new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(snapshot,
+                    SQLiteDatabase.CONFLICT_REPLACE)).start();
+            notifyUpdateChange(update.getDownloadId());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Make sure there's room for the given update, deleting other packages if
+     * needed. Files not used by any update go first, then packages that can't be
+     * installed, then the packages of older builds, in the order the package
+     * cache would delete them.
+     *
+     * @return true if the download can start
+     */
+    private boolean admitDownload(Update update, File destination) {
+        long required = mStorageAdmission.getRequiredBytes(update, destination);
+        if (mStorageAdmission.reserve(required)) {
+            return true;
+        }
+        if (isInstallingUpdate() || isVerifyingUpdate()) {
+            // Don't delete files that might be in use
+            return false;
+        }
+
+        List<Update> updates = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            updates.add(entry.mUpdate);
+        }
+        for (File file : mStorageAdmission.getOrphanFiles(updates)) {
+            Log.d(TAG, "Deleting unused file " + file.getName() + " to make room");
+            file.delete();
+        }
+        if (mStorageAdmission.reserve(required)) {
+            return true;
+        }
+
+        List<Update> candidates = new ArrayList<>();
+        for (Update candidate : updates) {
+            String id = candidate.getDownloadId();
+            if (id.equals(update.getDownloadId()) || isDownloading(id) ||
+                    isWaitingForReboot(id) || candidate.getFile() == null ||
+                    !candidate.getFile().exists()) {
+                continue;
+            }
+            if (!Utils.canInstall(candidate) ||
+                    candidate.getTimestamp() < update.getTimestamp()) {
+                candidates.add(candidate);
+            }
+        }
+        candidates.sort(PackageCache.getEvictionOrder(System.currentTimeMillis()));
+        for (Update candidate : candidates) {
+            Log.d(TAG, "Deleting " + candidate.getDownloadId() + " to make room");
+            evictUpdate(candidate);
+            if (mStorageAdmission.reserve(required)) {
+                return true;
+            }
+        }
+        Log.e(TAG, "Not enough space to download " + update.getDownloadId());
+        return false;
+    }
+
+    /**
+     * Delete the least recently used packages until the download directory is
+     * within the budget set by the user. Downloads in progress, packages being
+     * installed and the most recent package that can be installed are kept.
+     */
+    public void trimPackageCache() {
+        if (isInstallingUpdate() || isVerifyingUpdate()) {
+            // Don't delete files that might be in use
+            return;
+        }
+        List<Update> updates = new ArrayList<>();
+        List<Update> candidates = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update update = entry.mUpdate;
+            updates.add(update);
+            String id = update.getDownloadId();
+            if (!isDownloading(id) && !isWaitingForReboot(id)) {
+                candidates.add(update);
+            }
+        }
+        long usedBytes = PackageCache.getUsedBytes(updates);
+        for (Update update : mPackageCache.getEvictions(candidates, usedBytes)) {
+            Log.d(TAG, "Deleting " + update.getDownloadId() + " to stay within the budget");
+            evictUpdate(update);
+        }
+    }
+
+    private void evictUpdate(Update update) {
+        // Delete the file now, deleteUpdate() does it in the background
+        if (!update.getFile().delete()) {
+            Log.e(TAG, "Could not delete " + update.getFile().getAbsolutePath());
+        }
+        deleteUpdate(update.getDownloadId());
+    }
+
+    /**
+     * Record that the package of the update is being used, so that it's the last
+     * to be deleted when the cache is over budget
+     */
+    private void markUsed(Update update) {
+        update.setLastAccess(System.currentTimeMillis());
+        UpdateInfo snapshot = update.snapshot();
+        new Thread(() -> mUpdatesDbHelper.changeUpdateLastAccess(snapshot)).start();
+    }
+
+    void markUsed(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null) {
+            markUsed(entry.mUpdate);
+        }
+    }
+
+    @Override
     public boolean resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
@@ -399,21 +817,21 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return false;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        long downloadedBytes = getDownloadedBytes(update);
+        if (update.getFileSize() > 0 && downloadedBytes >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
             verifyUpdateAsync(downloadId);
             notifyUpdateChange(downloadId);
         } else {
+            if (!admitDownload(update, file)) {
+                update.setStatus(UpdateStatus.INSUFFICIENT_SPACE);
+                notifyUpdateChange(downloadId);
+                return false;
+            }
             DownloadClient downloadClient;
             try {
-                downloadClient = new DownloadClient.Builder()
-                        .setUrl(update.getDownloadUrl())
-                        .setDestination(update.getFile())
-                        .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
-                        .setUseDuplicateLinks(true)
-                        .build();
+                downloadClient = buildResumeClient(mDownloads.get(downloadId), downloadedBytes);
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
                 update.setStatus(UpdateStatus.PAUSED_ERROR);
@@ -421,6 +839,8 @@ public class UpdaterController {
                 return false;
             }
             addDownloadClient(mDownloads.get(downloadId), downloadClient);
+            tryStartPipelinedInstall(mDownloads.get(downloadId));
+            markUsed(update);
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -429,6 +849,63 @@ public class UpdaterController {
         return true;
     }
 
+    private DownloadClient buildResumeClient(DownloadEntry entry, long downloadedBytes)
+            throws IOException {
+        Update update = entry.mUpdate;
+        return new DownloadClient.Builder()
+                .setUrl(update.getDownloadUrl())
+                .setDestination(update.getFile())
+                .setDownloadCallback(getDownloadCallback(update.getDownloadId()))
+                .setProgressListener(getProgressListener(entry))
+                .setUseDuplicateLinks(true)
+                .setMirrorScoreboard(MirrorScoreboard.getInstance(mContext))
+                .setBufferSize(mDownloadBufferSize)
+                .setSpeedModel(mSpeedModel)
+                .setResumeOffset(downloadedBytes)
+                .setPreallocate(true, update.getFileSize())
+                .setMaxSpeed(entry.mPrefetch ? PREFETCH_MAX_SPEED : 0)
+                .build();
+    }
+
+    /**
+     * Continue a running download on a new connection, for instance after the
+     * default network changed. The download isn't paused, so its pipelined
+     * installation keeps going and gets the rest of the data from the new client.
+     */
+    @Override
+    public boolean reconnectDownload(String downloadId) {
+        Log.d(TAG, "Reconnecting " + downloadId);
+        if (!isDownloading(downloadId)) {
+            return false;
+        }
+
+        DownloadEntry entry = mDownloads.get(downloadId);
+        entry.mDownloadClient.cancel();
+        saveDownloadedBytes(entry);
+        final DownloadClient downloadClient;
+        try {
+            downloadClient = buildResumeClient(entry, getDownloadedBytes(entry.mUpdate));
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not build download client");
+            abortPipelinedInstall(entry);
+            removeDownloadClient(entry);
+            entry.mUpdate.setStatus(UpdateStatus.PAUSED_ERROR);
+            notifyUpdateChange(downloadId);
+            tryReleaseWakelock();
+            return false;
+        }
+        // Still the same download, only the client changes
+        entry.mDownloadClient = downloadClient;
+        mProgressHandler.postDelayed(() -> {
+            // Unless it was paused or replaced in the meantime
+            if (entry.mDownloadClient == downloadClient) {
+                downloadClient.resume();
+            }
+        }, RECONNECT_DELAY_MS);
+        return true;
+    }
+
+    @Override
     public boolean pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
         if (!isDownloading(downloadId)) {
@@ -437,6 +914,8 @@ public class UpdaterController {
 
         DownloadEntry entry = mDownloads.get(downloadId);
         entry.mDownloadClient.cancel();
+        saveDownloadedBytes(entry);
+        abortPipelinedInstall(entry);
         removeDownloadClient(entry);
         entry.mUpdate.setStatus(UpdateStatus.PAUSED);
         entry.mUpdate.setEta(0);
@@ -445,6 +924,47 @@ public class UpdaterController {
         return true;
     }
 
+    /**
+     * Download the update in the background, slowly and at low priority, so
+     * that it's ready when the user wants it. Incomplete downloads are resumed.
+     */
+    public boolean startPrefetch(String downloadId) {
+        Log.d(TAG, "Prefetching " + downloadId);
+        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+            return false;
+        }
+        DownloadEntry entry = mDownloads.get(downloadId);
+        Update update = entry.mUpdate;
+        entry.mPrefetch = true;
+        boolean started;
+        if (update.getPersistentStatus() == UpdateStatus.Persistent.INCOMPLETE &&
+                update.getFile() != null && update.getFile().exists()) {
+            started = resumeDownload(downloadId);
+        } else {
+            started = startDownload(downloadId);
+        }
+        if (!started || !isDownloading(downloadId)) {
+            entry.mPrefetch = false;
+        }
+        return started;
+    }
+
+    /**
+     * Pause the downloads started with {@link #startPrefetch(String)}.
+     */
+    public void stopPrefetch() {
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mPrefetch) {
+                pauseDownload(entry.mUpdate.getDownloadId());
+            }
+        }
+    }
+
+    @Override
+    public boolean isPrefetching(String downloadId) {
+        return mDownloads.containsKey(downloadId) && mDownloads.get(downloadId).mPrefetch;
+    }
+
     private void deleteUpdateAsync(final Update update) {
         new Thread(() -> {
             File file = update.getFile();
@@ -461,8 +981,10 @@ public class UpdaterController {
             return false;
         }
         Update update = mDownloads.get(downloadId).mUpdate;
+        Tracer.endUpdate(downloadId);
         update.setStatus(UpdateStatus.DELETED);
         update.setProgress(0);
+        update.setDownloadedBytes(0);
         update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
         deleteUpdateAsync(update);
 
@@ -477,21 +999,48 @@ public class UpdaterController {
         return true;
     }
 
+    void addInstallTimeline(InstallTimeline timeline) {
+        Metrics metrics = Metrics.getInstance();
+        metrics.histogram(Metrics.INSTALL_APPLY_MS).record(timeline.getApplyMillis());
+        metrics.histogram(Metrics.INSTALL_FINALIZING_MS).record(timeline.getFinalizingMillis());
+        metrics.histogram(Metrics.INSTALL_SUSPENDED_MS).record(timeline.getSuspendedMillis());
+        if (timeline.getErrorCode() != UpdateEngine.ErrorCodeConstants.SUCCESS) {
+            metrics.counter(Metrics.INSTALL_FAILURES).increment();
+        }
+        new Thread(() -> mUpdatesDbHelper.addInstallTimeline(timeline)).start();
+    }
+
+    /**
+     * @return the timelines of the last A/B installations, most recent first.
+     *         This reads the database, don't call it from the main thread.
+     */
+    public List<InstallTimeline> getInstallTimelines() {
+        return mUpdatesDbHelper.getInstallTimelines();
+    }
+
     public Set<String> getIds() {
         return mDownloads.keySet();
     }
 
+    /**
+     * @return a consistent copy of each update, it doesn't reflect later changes
+     */
+    @Override
     public List<UpdateInfo> getUpdates() {
         List<UpdateInfo> updates = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
-            updates.add(entry.mUpdate);
+            updates.add(entry.mUpdate.snapshot());
         }
         return updates;
     }
 
+    /**
+     * @return a consistent copy of the update, it doesn't reflect later changes
+     */
+    @Override
     public UpdateInfo getUpdate(String downloadId) {
         DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+        return entry != null ? entry.mUpdate.snapshot() : null;
     }
 
     Update getActualUpdate(String downloadId) {
@@ -499,6 +1048,7 @@ public class UpdaterController {
         return entry != null ? entry.mUpdate : null;
     }
 
+    @Override
     public boolean isDownloading(String downloadId) {
         return mDownloads.containsKey(downloadId) &&
                 mDownloads.get(downloadId).mDownloadClient != null;
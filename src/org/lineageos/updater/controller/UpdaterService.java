@@ -27,26 +27,29 @@ import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.text.format.Formatter;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 
+import org.json.JSONException;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdaterReceiver;
 import org.lineageos.updater.UpdatesActivity;
-import org.lineageos.updater.misc.BuildInfoUtils;
+import org.lineageos.updater.download.ConnectionPool;
 import org.lineageos.updater.misc.Constants;
-import org.lineageos.updater.misc.StringGenerator;
+import org.lineageos.updater.misc.Metrics;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.InstallTimeline;
 import org.lineageos.updater.model.UpdateInfo;
 import org.lineageos.updater.model.UpdateStatus;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.NumberFormat;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
 
 public class UpdaterService extends Service {
 
@@ -76,14 +79,23 @@ public class UpdaterService extends Service {
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
+    private NotificationRenderer mNotificationRenderer;
 
     private UpdaterController mUpdaterController;
+    private DownloadNetworkScheduler mNetworkScheduler;
+    private InstallPolicyScheduler mInstallScheduler;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
         mUpdaterController = UpdaterController.getInstance(this);
+        mNetworkScheduler = new DownloadNetworkScheduler(mUpdaterController,
+                new ConnectivityNetworkSource(this),
+                PreferenceManager.getDefaultSharedPreferences(this));
+        mInstallScheduler = new InstallPolicyScheduler(this, mUpdaterController,
+                new SystemDeviceStateSource(this),
+                PreferenceManager.getDefaultSharedPreferences(this));
 
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         NotificationChannel notificationChannel = new NotificationChannel(
@@ -102,6 +114,8 @@ public class UpdaterService extends Service {
         PendingIntent intent = PendingIntent.getActivity(this, 0, notificationIntent,
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         mNotificationBuilder.setContentIntent(intent);
+        mNotificationRenderer = new NotificationRenderer(this, mNotificationManager,
+                mNotificationBuilder, mNotificationStyle, NOTIFICATION_ID);
 
         mBroadcastReceiver = new BroadcastReceiver() {
             @Override
@@ -109,26 +123,31 @@ public class UpdaterService extends Service {
                 String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                 if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    Bundle extras = new Bundle();
-                    extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
-                    mNotificationBuilder.setExtras(extras);
-                    handleUpdateStatusChange(update);
+                    mNetworkScheduler.onUpdateStatusChanged(update);
+                    mInstallScheduler.onUpdateStatusChanged(update);
+                    synchronized (mNotificationBuilder) {
+                        mNotificationRenderer.setTitle(update);
+                        Bundle extras = new Bundle();
+                        extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
+                        mNotificationBuilder.setExtras(extras);
+                        handleUpdateStatusChange(update);
+                    }
                 } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
+                    mNotificationRenderer.onDownloadProgress(update);
                 } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleInstallProgress(update);
+                    mNotificationRenderer.onInstallProgress(update);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    Bundle extras = mNotificationBuilder.getExtras();
-                    if (extras != null && downloadId.equals(
-                            extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
-                        mNotificationBuilder.setExtras(null);
-                        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                        if (update.getStatus() != UpdateStatus.INSTALLED) {
-                            mNotificationManager.cancel(NOTIFICATION_ID);
+                    synchronized (mNotificationBuilder) {
+                        Bundle extras = mNotificationBuilder.getExtras();
+                        if (extras != null && downloadId.equals(
+                                extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
+                            mNotificationBuilder.setExtras(null);
+                            UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+                            if (update.getStatus() != UpdateStatus.INSTALLED) {
+                                mNotificationRenderer.cancel();
+                            }
                         }
                     }
                 }
@@ -141,11 +160,16 @@ public class UpdaterService extends Service {
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
 
+        mNetworkScheduler.start();
+        mInstallScheduler.start();
     }
 
     @Override
     public void onDestroy() {
+        mNetworkScheduler.stop();
+        mInstallScheduler.stop();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mNotificationRenderer.quit();
         super.onDestroy();
     }
 
@@ -195,6 +219,7 @@ public class UpdaterService extends Service {
             if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
+            mUpdaterController.markUsed(downloadId);
             try {
                 if (Utils.isABUpdate(update.getFile())) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
@@ -244,9 +269,40 @@ public class UpdaterService extends Service {
         return mUpdaterController;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        ConnectionPool.getInstance().exportStats();
+        if (args != null && Arrays.asList(args).contains("--json")) {
+            try {
+                pw.println(Metrics.getInstance().toJson().toString());
+            } catch (JSONException e) {
+                Log.e(TAG, "Could not export metrics", e);
+            }
+            return;
+        }
+        Metrics.getInstance().dump(pw);
+        pw.println();
+        pw.println("Connection pool: " + ConnectionPool.getInstance().getStats());
+        pw.println();
+        pw.println("Install timelines:");
+        for (InstallTimeline timeline : mUpdaterController.getInstallTimelines()) {
+            pw.println("  " + timeline.getDownloadId() +
+                    " started=" + new Date(timeline.getStartTime()) +
+                    " total=" + (timeline.getEndTime() - timeline.getStartTime()) + "ms" +
+                    " size=" + timeline.getFileSize() +
+                    " streaming=" + timeline.isStreaming() +
+                    " apply=" + timeline.getApplyMillis() + "ms" +
+                    " finalizing=" + timeline.getFinalizingMillis() + "ms" +
+                    " suspended=" + timeline.getSuspendedMillis() + "ms" +
+                    " (" + timeline.getSuspendCount() + " times)" +
+                    " error=" + timeline.getErrorCode());
+        }
+    }
+
     private void tryStopSelf() {
         if (!mHasClients && !mUpdaterController.hasActiveDownloads() &&
-                !mUpdaterController.isInstallingUpdate()) {
+                !mUpdaterController.isInstallingUpdate() &&
+                !mNetworkScheduler.hasPausedDownloads()) {
             Log.d(TAG, "Service no longer needed, stopping");
             stopSelf();
         }
@@ -257,7 +313,7 @@ public class UpdaterService extends Service {
             case DELETED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 mNotificationBuilder.setOngoing(false);
-                mNotificationManager.cancel(NOTIFICATION_ID);
+                mNotificationRenderer.cancel();
                 tryStopSelf();
                 break;
             }
@@ -273,7 +329,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
                 startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 break;
             }
             case DOWNLOADING: {
@@ -288,7 +344,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 break;
             }
             case PAUSED: {
@@ -306,7 +362,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 tryStopSelf();
                 break;
             }
@@ -326,7 +382,28 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
+                tryStopSelf();
+                break;
+            }
+            case INSUFFICIENT_SPACE: {
+                stopForeground(STOP_FOREGROUND_DETACH);
+                int progress = update.getProgress();
+                mNotificationBuilder.setProgress(progress > 0 ? 100 : 0, progress, false);
+                mNotificationBuilder.mActions.clear();
+                String text = getString(R.string.download_insufficient_space_notification);
+                mNotificationStyle.bigText(text);
+                mNotificationBuilder.setStyle(mNotificationStyle);
+                mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
+                if (update.getPersistentStatus() == UpdateStatus.Persistent.INCOMPLETE) {
+                    mNotificationBuilder.addAction(android.R.drawable.ic_media_play,
+                            getString(R.string.resume_button),
+                            getResumePendingIntent(update.getDownloadId()));
+                }
+                mNotificationBuilder.setTicker(text);
+                mNotificationBuilder.setOngoing(false);
+                mNotificationBuilder.setAutoCancel(false);
+                mNotificationRenderer.show();
                 tryStopSelf();
                 break;
             }
@@ -339,7 +416,7 @@ public class UpdaterService extends Service {
                 String text = getString(R.string.verifying_download_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setTicker(text);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 break;
             }
             case VERIFIED: {
@@ -353,7 +430,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 tryStopSelf();
                 break;
             }
@@ -368,7 +445,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 tryStopSelf();
                 break;
             }
@@ -391,7 +468,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
                 startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 break;
             }
             case INSTALLED: {
@@ -409,7 +486,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
 
                 SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
                 boolean deleteUpdate = pref.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
@@ -431,12 +508,13 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
                 mNotificationBuilder.mActions.clear();
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 tryStopSelf();
                 break;
             }
             case INSTALLATION_CANCELLED: {
                 stopForeground(true);
+                mNotificationRenderer.cancel();
                 tryStopSelf();
                 break;
             }
@@ -455,53 +533,13 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationRenderer.show();
                 tryStopSelf();
                 break;
             }
         }
     }
 
-    private void handleDownloadProgressChange(UpdateInfo update) {
-        int progress = update.getProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
-
-        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-        String speed = Formatter.formatFileSize(this, update.getSpeed());
-        mNotificationStyle.setSummaryText(percent + " • " + speed + "/s");
-
-        setNotificationTitle(update);
-
-        CharSequence eta = StringGenerator.formatETA(this, update.getEta() * 1000);
-        mNotificationStyle.bigText(
-                getString(R.string.text_download_speed, eta, speed));
-
-        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
-    }
-
-    private void handleInstallProgress(UpdateInfo update) {
-        setNotificationTitle(update);
-        int progress = update.getInstallProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
-        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-        mNotificationStyle.setSummaryText(percent);
-        boolean notAB = UpdateInstaller.isInstalling();
-        mNotificationStyle.bigText(notAB ? getString(R.string.dialog_prepare_zip_message) :
-                update.getFinalizing() ?
-                        getString(R.string.finalizing_package) :
-                        getString(R.string.preparing_ota_first_boot));
-        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
-    }
-
-    private void setNotificationTitle(UpdateInfo update) {
-        String buildDate = StringGenerator.getDateLocalizedUTC(this,
-                DateFormat.MEDIUM, update.getTimestamp());
-        String buildInfo = getString(R.string.list_build_version_date,
-                BuildInfoUtils.getBuildVersion(), buildDate);
-        mNotificationStyle.setBigContentTitle(buildInfo);
-        mNotificationBuilder.setContentTitle(buildInfo);
-    }
-
     private PendingIntent getResumePendingIntent(String downloadId) {
         final Intent intent = new Intent(this, UpdaterService.class);
         intent.setAction(ACTION_DOWNLOAD_CONTROL);
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.util.Log;
+
+import org.lineageos.updater.misc.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens every HTTP connection of the app with the same configuration, so that the
+ * system keep-alive pool and TLS session cache can be shared by the updates list
+ * check, redirects, mirror probes and package downloads.
+ *
+ * The platform only pools connections created with the same SSLSocketFactory and
+ * whose response body has been fully consumed and closed; disconnect() always
+ * closes the socket. Connections should therefore be given back with release().
+ */
+public class ConnectionPool {
+
+    private static final String TAG = "ConnectionPool";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    // Response bodies up to this size are drained to keep the connection alive
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final int MAX_TRACKED_SESSIONS = 64;
+
+    private static ConnectionPool sInstance;
+
+    private final TrackingSocketFactory mSocketFactory;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+    private final AtomicLong mTlsConnections = new AtomicLong();
+    private final AtomicLong mFullHandshakes = new AtomicLong();
+    private final AtomicLong mResumedHandshakes = new AtomicLong();
+
+    public static final class Stats {
+        public final long requests;
+        public final long released;
+        public final long discarded;
+        public final long tlsConnections;
+        public final long fullHandshakes;
+        public final long resumedHandshakes;
+
+        private Stats(ConnectionPool pool) {
+            requests = pool.mRequests.get();
+            released = pool.mReleased.get();
+            discarded = pool.mDiscarded.get();
+            tlsConnections = pool.mTlsConnections.get();
+            fullHandshakes = pool.mFullHandshakes.get();
+            resumedHandshakes = pool.mResumedHandshakes.get();
+        }
+
+        /**
+         * @return the number of HTTPS requests served by an already open connection
+         */
+        public long getReusedTlsConnections() {
+            return Math.max(0, requests - tlsConnections);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "requests=%d released=%d discarded=%d tls_connections=%d " +
+                            "full_handshakes=%d resumed_handshakes=%d",
+                    requests, released, discarded, tlsConnections, fullHandshakes,
+                    resumedHandshakes);
+        }
+    }
+
+    public static synchronized ConnectionPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConnectionPool();
+        }
+        return sInstance;
+    }
+
+    private ConnectionPool() {
+        mSocketFactory = new TrackingSocketFactory(
+                HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    /**
+     * Copy the current stats to the gauges of the metrics registry
+     */
+    public void exportStats() {
+        Stats stats = getStats();
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge(Metrics.CONNECTION_REQUESTS).set(stats.requests);
+        metrics.gauge(Metrics.CONNECTION_RELEASED).set(stats.released);
+        metrics.gauge(Metrics.CONNECTION_DISCARDED).set(stats.discarded);
+        metrics.gauge(Metrics.CONNECTION_TLS).set(stats.tlsConnections);
+        metrics.gauge(Metrics.CONNECTION_TLS_REUSED).set(stats.getReusedTlsConnections());
+        metrics.gauge(Metrics.CONNECTION_FULL_HANDSHAKES).set(stats.fullHandshakes);
+        metrics.gauge(Metrics.CONNECTION_RESUMED_HANDSHAKES).set(stats.resumedHandshakes);
+    }
+
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSocketFactory);
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        mRequests.incrementAndGet();
+        return connection;
+    }
+
+    public HttpURLConnection open(String url) throws IOException {
+        return open(new URL(url));
+    }
+
+    /**
+     * Give back a connection whose response is no longer needed. Small unread
+     * bodies are drained so that the connection can be reused, otherwise the
+     * connection is closed.
+     */
+    public void release(HttpURLConnection connection) {
+        try {
+            InputStream stream = connection.getResponseCode() >= 400 ?
+                    connection.getErrorStream() : connection.getInputStream();
+            if (stream != null) {
+                try (InputStream is = stream) {
+                    byte[] buffer = new byte[8192];
+                    long drained = 0;
+                    int count;
+                    while ((count = is.read(buffer)) > 0) {
+                        drained += count;
+                        if (drained > MAX_DRAIN_BYTES) {
+                            discard(connection);
+                            return;
+                        }
+                    }
+                }
+            }
+            mReleased.incrementAndGet();
+        } catch (IOException e) {
+            discard(connection);
+        }
+    }
+
+    /**
+     * Give back a connection whose response body has been fully read and closed.
+     * The platform already returned it to the keep-alive pool.
+     */
+    public void releaseConsumed() {
+        mReleased.incrementAndGet();
+    }
+
+    /**
+     * Close a connection, e.g. because the transfer was aborted
+     */
+    public void discard(HttpURLConnection connection) {
+        mDiscarded.incrementAndGet();
+        connection.disconnect();
+    }
+
+    private class TrackingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+        private final Set<String> mSessionIds = new LinkedHashSet<>();
+
+        private TrackingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket track(Socket socket) {
+            mTlsConnections.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(this::onHandshakeCompleted);
+            }
+            return socket;
+        }
+
+        private void onHandshakeCompleted(HandshakeCompletedEvent event) {
+            String id = Arrays.toString(event.getSession().getId());
+            boolean resumed;
+            synchronized (mSessionIds) {
+                resumed = !mSessionIds.add(id);
+                if (mSessionIds.size() > MAX_TRACKED_SESSIONS) {
+                    mSessionIds.remove(mSessionIds.iterator().next());
+                }
+            }
+            if (resumed) {
+                mResumedHandshakes.incrementAndGet();
+            } else {
+                mFullHandshakes.incrementAndGet();
+            }
+            Log.d(TAG, (resumed ? "Resumed" : "New") + " TLS session with " +
+                    event.getSession().getPeerHost());
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+                throws IOException {
+            return track(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return track(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return track(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
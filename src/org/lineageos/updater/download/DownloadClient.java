@@ -17,6 +17,7 @@ package org.lineageos.updater.download;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -58,12 +59,31 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Creates a client with the options of a Builder
+     */
+    interface Backend {
+        DownloadClient create(Builder builder) throws IOException;
+    }
+
     final class Builder {
-        private String mUrl;
-        private File mDestination;
-        private DownloadClient.DownloadCallback mCallback;
-        private DownloadClient.ProgressListener mProgressListener;
-        private boolean mUseDuplicateLinks;
+        // Package-private, the backends read the options directly
+        String mUrl;
+        File mDestination;
+        DownloadClient.DownloadCallback mCallback;
+        DownloadClient.ProgressListener mProgressListener;
+        boolean mUseDuplicateLinks;
+        MirrorScoreboard mMirrorScoreboard;
+        int mBufferSize = 8192;
+        int mReadTimeout = 30000;
+        SpeedEstimator.Model mSpeedModel = SpeedEstimator.Model.TIME_WEIGHTED_EMA;
+        final Map<String, String> mRequestHeaders = new LinkedHashMap<>();
+        long mResumeOffset = -1;
+        boolean mPreallocate;
+        long mExpectedSize = -1;
+        long mMaxSpeed;
+
+        private Backend mBackend = HttpURLConnectionClient::new;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -73,8 +93,7 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            return mBackend.create(this);
         }
 
         public Builder setUrl(String url) {
@@ -101,5 +120,95 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Use the given scoreboard to order and rate the duplicate links.
+         * Only used if duplicate links are enabled.
+         */
+        public Builder setMirrorScoreboard(MirrorScoreboard mirrorScoreboard) {
+            mMirrorScoreboard = mirrorScoreboard;
+            return this;
+        }
+
+        /**
+         * Client doing the download, HttpURLConnectionClient by default
+         */
+        public Builder setBackend(Backend backend) {
+            mBackend = backend;
+            return this;
+        }
+
+        /**
+         * Size of the buffer used to read the response body
+         */
+        public Builder setBufferSize(int bufferSize) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+            }
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Time in milliseconds without receiving anything after which the
+         * connection is considered stalled and the download is retried
+         */
+        public Builder setReadTimeout(int readTimeout) {
+            if (readTimeout <= 0) {
+                throw new IllegalArgumentException("Invalid read timeout " + readTimeout);
+            }
+            mReadTimeout = readTimeout;
+            return this;
+        }
+
+        /**
+         * Model used to estimate the speed and the ETA reported to the ProgressListener
+         */
+        public Builder setSpeedModel(SpeedEstimator.Model speedModel) {
+            mSpeedModel = speedModel;
+            return this;
+        }
+
+        /**
+         * Add a header to every request. The response body is saved as received,
+         * so asking for a content encoding means decoding the destination file.
+         */
+        public Builder setRequestHeader(String name, String value) {
+            mRequestHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * Number of bytes already downloaded, where resume() continues from.
+         * By default, the length of the destination file is used.
+         */
+        public Builder setResumeOffset(long resumeOffset) {
+            mResumeOffset = resumeOffset;
+            return this;
+        }
+
+        /**
+         * Allocate the whole destination file before writing, so that it's not
+         * fragmented. The size is taken from the response, or is expectedSize if
+         * the server doesn't send it. Once the destination is preallocated its
+         * length is no longer the number of bytes downloaded, see setResumeOffset().
+         */
+        public Builder setPreallocate(boolean preallocate, long expectedSize) {
+            mPreallocate = preallocate;
+            mExpectedSize = expectedSize;
+            return this;
+        }
+
+        /**
+         * Limit the download speed and run it at background priority, for
+         * downloads nobody is waiting for. 0, the default, means no limit.
+         */
+        public Builder setMaxSpeed(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Invalid speed " + bytesPerSecond);
+            }
+            mMaxSpeed = bytesPerSecond;
+            return this;
+        }
     }
 }
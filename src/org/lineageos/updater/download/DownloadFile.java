@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Destination of a download. Data is written at explicit offsets, so the file
+ * can be preallocated to its final size and its length says nothing about how
+ * much has been downloaded.
+ */
+class DownloadFile implements Closeable {
+
+    private static final String TAG = "DownloadFile";
+
+    /**
+     * The file doesn't fit on the disk, retrying won't help
+     */
+    static class OutOfSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfSpaceException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+
+    /**
+     * @param truncate discard the current content of the file
+     */
+    DownloadFile(File file, boolean truncate) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        if (truncate) {
+            mChannel.truncate(0);
+        }
+    }
+
+    /**
+     * Reserve the blocks of the whole file at once, so that the filesystem can
+     * keep them contiguous. It's not an error if the filesystem doesn't support it,
+     * the file grows as it's written.
+     *
+     * @throws OutOfSpaceException if there isn't enough space for the whole file
+     */
+    void preallocate(long size) throws IOException {
+        long currentSize = mChannel.size();
+        if (size <= 0 || currentSize >= size) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(mFile.getFD(), 0, size);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                // Give back what could be allocated before failing
+                mChannel.truncate(currentSize);
+                throw new OutOfSpaceException("No space for " + size + " bytes", e);
+            } else if (e.errno != OsConstants.EOPNOTSUPP && e.errno != OsConstants.ENOSYS) {
+                throw new IOException("Could not preallocate " + size + " bytes", e);
+            }
+            Log.d(TAG, "Preallocation not supported", e);
+        }
+    }
+
+    /**
+     * Write all the remaining bytes of the buffer at the given position
+     */
+    void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Drop what was preallocated beyond the actual end of the download
+     */
+    void finish(long size) throws IOException {
+        if (mChannel.size() > size) {
+            mChannel.truncate(size);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
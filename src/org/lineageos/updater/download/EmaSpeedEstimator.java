@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+/**
+ * Exponential moving average of the speed. The weight of each sample depends on
+ * the time it covers, so the result doesn't depend on how often reads complete.
+ */
+class EmaSpeedEstimator implements SpeedEstimator {
+
+    // The speed measured over shorter intervals is mostly noise
+    private static final long MIN_INTERVAL_MS = 250;
+    // Older samples lose ~63% of their weight every TIME_CONSTANT_MS
+    private static final double TIME_CONSTANT_MS = 8000;
+
+    private long mLastBytes = -1;
+    private long mLastMillis;
+    private double mSpeed = -1;
+
+    @Override
+    public void addSample(long bytes, long timeMillis) {
+        if (mLastBytes < 0) {
+            mLastBytes = bytes;
+            mLastMillis = timeMillis;
+            return;
+        }
+        final long delta = timeMillis - mLastMillis;
+        if (delta < MIN_INTERVAL_MS) {
+            return;
+        }
+        final double curSpeed = (bytes - mLastBytes) * 1000.0 / delta;
+        if (mSpeed < 0) {
+            mSpeed = curSpeed;
+        } else {
+            final double alpha = 1 - Math.exp(-delta / TIME_CONSTANT_MS);
+            mSpeed += alpha * (curSpeed - mSpeed);
+        }
+        mLastBytes = bytes;
+        mLastMillis = timeMillis;
+    }
+
+    @Override
+    public long getSpeed() {
+        return mSpeed < 0 ? -1 : Math.round(mSpeed);
+    }
+}
@@ -15,20 +15,23 @@
  */
 package org.lineageos.updater.download;
 
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,12 +39,29 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Transfers slower than this for STALL_WINDOW_MS are considered stalled
+    private static final long STALL_MIN_BYTES_PER_SECOND = 1024;
+    private static final int STALL_WINDOW_MS = 30000;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_BASE_DELAY_MS = 2000;
+    private static final long RETRY_MAX_DELAY_MS = 60000;
+
+    private final String mUrl;
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final MirrorScoreboard mMirrorScoreboard;
+    private final int mBufferSize;
+    private final int mReadTimeout;
+    private final SpeedEstimator.Model mSpeedModel;
+    private final Map<String, String> mRequestHeaders;
+    private final long mResumeOffset;
+    private final boolean mPreallocate;
+    private final long mExpectedSize;
+    private final long mMaxSpeed;
 
     private DownloadThread mDownloadThread;
 
@@ -57,15 +77,37 @@ public class HttpURLConnectionClient implements DownloadClient {
         }
     }
 
-    HttpURLConnectionClient(String url, File destination,
-            DownloadClient.ProgressListener progressListener,
-            DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
-        mDestination = destination;
-        mProgressListener = progressListener;
-        mCallback = callback;
-        mUseDuplicateLinks = useDuplicateLinks;
+    HttpURLConnectionClient(DownloadClient.Builder builder) throws IOException {
+        mUrl = builder.mUrl;
+        mResumeOffset = builder.mResumeOffset;
+        mPreallocate = builder.mPreallocate;
+        mExpectedSize = builder.mExpectedSize;
+        mMaxSpeed = builder.mMaxSpeed;
+        mRequestHeaders = new HashMap<>(builder.mRequestHeaders);
+        mClient = openConnection(mUrl);
+        mDestination = builder.mDestination;
+        mProgressListener = builder.mProgressListener;
+        mCallback = builder.mCallback;
+        mUseDuplicateLinks = builder.mUseDuplicateLinks;
+        mMirrorScoreboard = builder.mMirrorScoreboard;
+        mBufferSize = builder.mBufferSize;
+        mReadTimeout = builder.mReadTimeout;
+        mSpeedModel = builder.mSpeedModel;
+    }
+
+    private HttpURLConnection openConnection(String url) throws IOException {
+        return setRequestHeaders(ConnectionPool.getInstance().open(url));
+    }
+
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        return setRequestHeaders(ConnectionPool.getInstance().open(url));
+    }
+
+    private HttpURLConnection setRequestHeaders(HttpURLConnection connection) {
+        for (Map.Entry<String, String> header : mRequestHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return connection;
     }
 
     @Override
@@ -101,18 +143,22 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
+        long offset = mResumeOffset >= 0 ? mResumeOffset : mDestination.length();
         mClient.setRequestProperty("Range", "bytes=" + offset + "-");
-        downloadFileInternalCommon(true);
+        downloadFileInternalCommon(true, offset);
     }
 
     private void downloadFileInternalCommon(boolean resume) {
+        downloadFileInternalCommon(resume, 0);
+    }
+
+    private void downloadFileInternalCommon(boolean resume, long offset) {
         if (mDownloadThread != null) {
             Log.wtf(TAG, "Already downloading");
             return;
         }
 
-        mDownloadThread = new DownloadThread(resume);
+        mDownloadThread = new DownloadThread(resume, offset);
         mDownloadThread.start();
     }
 
@@ -133,43 +179,77 @@ public class HttpURLConnectionClient implements DownloadClient {
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
 
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
+        private final SpeedEstimator mSpeedEstimator = SpeedEstimator.create(mSpeedModel);
+        private final Throttle mThrottle = mMaxSpeed > 0 ? new Throttle(mMaxSpeed) : null;
         private long mSpeed = -1;
         private long mEta = -1;
 
-        private final boolean mResume;
+        private boolean mResume;
 
-        private DownloadThread(boolean resume) {
+        private long mStallCheckMillis;
+        private long mStallCheckBytes;
+        private final Random mRandom = new Random();
+
+        private DownloadThread(boolean resume, long offset) {
             mResume = resume;
+            // Only what precedes this offset is kept in the destination
+            mTotalBytesRead = offset;
         }
 
         private void calculateSpeed() {
-            final long millis = SystemClock.elapsedRealtime();
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
-                }
+            mSpeedEstimator.addSample(mTotalBytesRead, SystemClock.elapsedRealtime());
+            mSpeed = mSpeedEstimator.getSpeed();
+        }
 
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
+        private void calculateEta() {
+            long eta = SpeedEstimator.getEta(mSpeedEstimator, mTotalBytes - mTotalBytesRead);
+            if (eta >= 0) {
+                mEta = eta;
             }
         }
 
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+        private void checkStall() throws IOException {
+            final long millis = SystemClock.elapsedRealtime();
+            final long delta = millis - mStallCheckMillis;
+            if (delta < STALL_WINDOW_MS) {
+                return;
+            }
+            if ((mTotalBytesRead - mStallCheckBytes) * 1000 / delta < STALL_MIN_BYTES_PER_SECOND) {
+                throw new IOException("Download stalled");
             }
+            mStallCheckMillis = millis;
+            mStallCheckBytes = mTotalBytesRead;
         }
 
-        private void changeClientUrl(URL newUrl) throws IOException {
+        // Exponential backoff with jitter, between half and the full delay
+        private long getRetryDelay(int retry) {
+            long delay = Math.min(RETRY_BASE_DELAY_MS << retry, RETRY_MAX_DELAY_MS);
+            return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        }
+
+        /**
+         * Prepare a new connection that continues from what has been written so far.
+         * With duplicate links, the mirror is chosen again.
+         */
+        private void prepareRetry() throws IOException {
+            ConnectionPool.getInstance().discard(mClient);
+            mClient = openConnection(mUrl);
+            mClient.setReadTimeout(mReadTimeout);
+            mResume = mTotalBytesRead > 0;
+            if (mResume) {
+                mClient.setRequestProperty("Range", "bytes=" + mTotalBytesRead + "-");
+            }
+        }
+
+        private void changeClientUrl(URL newUrl, boolean reusable) throws IOException {
             String range = mClient.getRequestProperty("Range");
-            mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            if (reusable) {
+                ConnectionPool.getInstance().release(mClient);
+            } else {
+                ConnectionPool.getInstance().discard(mClient);
+            }
+            mClient = openConnection(newUrl);
+            mClient.setReadTimeout(mReadTimeout);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
@@ -213,8 +293,24 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             }
 
-            String newUrl = mClient.getHeaderField("Location");
-            for (;;) {
+            // The server's choice comes first, then the duplicates by priority
+            List<String> candidates = new ArrayList<>();
+            String location = mClient.getHeaderField("Location");
+            if (location != null) {
+                candidates.add(location);
+            }
+            while (duplicates != null && !duplicates.isEmpty()) {
+                candidates.add(duplicates.poll().mUrl);
+            }
+            if (candidates.isEmpty()) {
+                throw new IOException("No URL to download from");
+            }
+            if (mMirrorScoreboard != null) {
+                candidates = mMirrorScoreboard.order(candidates);
+            }
+
+            for (int i = 0; i < candidates.size(); i++) {
+                String newUrl = candidates.get(i);
                 try {
                     URL url = new URL(newUrl);
                     if (!url.getProtocol().equals(protocol)) {
@@ -223,29 +319,73 @@ public class HttpURLConnectionClient implements DownloadClient {
                         throw new IOException("Protocol changes are not allowed");
                     }
                     Log.d(TAG, "Downloading from " + newUrl);
-                    changeClientUrl(url);
+                    // Only the redirect response can be reused, not a failed attempt
+                    changeClientUrl(url, i == 0);
                     mClient.setConnectTimeout(5000);
+                    final long start = SystemClock.elapsedRealtime();
                     mClient.connect();
+                    final long connected = SystemClock.elapsedRealtime();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
+                    if (mMirrorScoreboard != null) {
+                        mMirrorScoreboard.recordConnection(newUrl, connected - start,
+                                SystemClock.elapsedRealtime() - start);
+                    }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        duplicates.remove(link);
-                        newUrl = link.mUrl;
-                        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
-                    } else {
+                    if (mMirrorScoreboard != null) {
+                        mMirrorScoreboard.recordFailure(newUrl);
+                    }
+                    if (i == candidates.size() - 1) {
                         throw e;
                     }
+                    Log.e(TAG, "Using duplicate link " + candidates.get(i + 1), e);
                 }
             }
         }
 
         @Override
         public void run() {
+            if (mThrottle != null) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            int retries = 0;
+            while (true) {
+                try {
+                    download();
+                    return;
+                } catch (IOException e) {
+                    if (isInterrupted() || retries >= MAX_RETRIES ||
+                            e instanceof DownloadFile.OutOfSpaceException) {
+                        Log.e(TAG, "Error downloading file", e);
+                        mCallback.onFailure(isInterrupted());
+                        return;
+                    }
+                    if (mUseDuplicateLinks && mMirrorScoreboard != null) {
+                        mMirrorScoreboard.recordFailure(mClient.getURL().toString());
+                    }
+                    long delay = getRetryDelay(retries++);
+                    Log.e(TAG, "Error downloading file, retrying in " + delay + " ms", e);
+                    try {
+                        Thread.sleep(delay);
+                        prepareRetry();
+                    } catch (InterruptedException ie) {
+                        mCallback.onFailure(true);
+                        return;
+                    } catch (IOException ie) {
+                        Log.e(TAG, "Could not retry the download", ie);
+                        mCallback.onFailure(isInterrupted());
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void download() throws IOException {
+            boolean consumed = false;
             try {
+                mClient.setReadTimeout(mReadTimeout);
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
@@ -258,7 +398,6 @@ public class HttpURLConnectionClient implements DownloadClient {
                 mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
 
                 if (mResume && isPartialContentCode(responseCode)) {
-                    mTotalBytesRead = mDestination.length();
                     Log.d(TAG, "The server fulfilled the partial content request");
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
@@ -266,28 +405,58 @@ public class HttpURLConnectionClient implements DownloadClient {
                     return;
                 }
 
+                final String transferUrl = mClient.getURL().toString();
+                final long transferStart = SystemClock.elapsedRealtime();
+                final long transferStartBytes = mTotalBytesRead;
+                mStallCheckMillis = transferStart;
+                mStallCheckBytes = mTotalBytesRead;
                 try (
                         InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
+                        DownloadFile outputFile = new DownloadFile(mDestination, !mResume)
                 ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
+                    final long contentLength = mClient.getContentLengthLong();
+                    mTotalBytes = contentLength + mTotalBytesRead;
+                    if (mPreallocate) {
+                        outputFile.preallocate(contentLength >= 0 ? mTotalBytes : mExpectedSize);
+                    }
+                    byte[] b = new byte[mBufferSize];
+                    ByteBuffer buffer = ByteBuffer.wrap(b);
                     int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
+                    try {
+                        while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
+                            buffer.clear();
+                            buffer.limit(count);
+                            outputFile.write(buffer, mTotalBytesRead);
+                            mTotalBytesRead += count;
+                            if (mThrottle != null) {
+                                mThrottle.onBytesRead(count);
+                            }
+                            checkStall();
+                            calculateSpeed();
+                            calculateEta();
+                            if (mProgressListener != null) {
+                                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed,
+                                        mEta, false);
+                            }
+                        }
+                    } finally {
+                        if (mUseDuplicateLinks && mMirrorScoreboard != null) {
+                            mMirrorScoreboard.recordTransfer(transferUrl,
+                                    mTotalBytesRead - transferStartBytes,
+                                    SystemClock.elapsedRealtime() - transferStart);
                         }
                     }
+                    if (!isInterrupted() && contentLength >= 0 && mTotalBytesRead < mTotalBytes) {
+                        throw new IOException("Unexpected end of stream");
+                    }
                     if (mProgressListener != null) {
                         mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
                     }
 
-                    outputStream.flush();
+                    consumed = !isInterrupted();
+                    if (consumed) {
+                        outputFile.finish(mTotalBytesRead);
+                    }
 
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
@@ -295,11 +464,12 @@ public class HttpURLConnectionClient implements DownloadClient {
                         mCallback.onSuccess(mDestination);
                     }
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
             } finally {
-                mClient.disconnect();
+                if (consumed) {
+                    ConnectionPool.getInstance().releaseConsumed();
+                } else {
+                    ConnectionPool.getInstance().discard(mClient);
+                }
             }
         }
     }
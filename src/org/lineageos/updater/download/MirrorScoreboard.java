@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.lineageos.updater.misc.Metrics;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps track of how mirrors performed in past downloads and uses it to decide
+ * which mirror to try first. The stats are persisted across runs.
+ */
+public class MirrorScoreboard {
+
+    private static final String TAG = "MirrorScoreboard";
+
+    private static final String PREFS_NAME = "mirror_scoreboard";
+
+    // Weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.3;
+    // Fraction of downloads that keep the order suggested by the server
+    private static final double EXPLORATION_RATE = 0.1;
+    // Transfers shorter than this don't say much about the throughput
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 1024 * 1024;
+    private static final long STATS_MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private static MirrorScoreboard sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, MirrorStats> mStats = new HashMap<>();
+    private final Random mRandom = new Random();
+
+    static final class MirrorStats {
+        double connectMillis = -1;
+        double firstByteMillis = -1;
+        double bytesPerSecond = -1;
+        double failureRate = 0;
+        int samples = 0;
+        long lastUpdate = 0;
+
+        private static double average(double current, double sample) {
+            return current < 0 ? sample : current * (1 - ALPHA) + sample * ALPHA;
+        }
+
+        double getScore() {
+            if (bytesPerSecond <= 0) {
+                return 0;
+            }
+            // Expected throughput, slightly penalized by the time needed to start
+            double latencyPenalty = 1 + Math.max(firstByteMillis, 0) / 1000;
+            return bytesPerSecond * (1 - failureRate) / latencyPenalty;
+        }
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put("connect", connectMillis);
+            object.put("ttfb", firstByteMillis);
+            object.put("throughput", bytesPerSecond);
+            object.put("failures", failureRate);
+            object.put("samples", samples);
+            object.put("last_update", lastUpdate);
+            return object;
+        }
+
+        private static MirrorStats fromJson(JSONObject object) {
+            MirrorStats stats = new MirrorStats();
+            stats.connectMillis = object.optDouble("connect", -1);
+            stats.firstByteMillis = object.optDouble("ttfb", -1);
+            stats.bytesPerSecond = object.optDouble("throughput", -1);
+            stats.failureRate = object.optDouble("failures", 0);
+            stats.samples = object.optInt("samples", 0);
+            stats.lastUpdate = object.optLong("last_update", 0);
+            return stats;
+        }
+    }
+
+    public static synchronized MirrorScoreboard getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MirrorScoreboard(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MirrorScoreboard(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            try {
+                MirrorStats stats = MirrorStats.fromJson(
+                        new JSONObject((String) entry.getValue()));
+                if (now - stats.lastUpdate < STATS_MAX_AGE_MS) {
+                    mStats.put(entry.getKey(), stats);
+                }
+            } catch (JSONException | ClassCastException e) {
+                Log.e(TAG, "Ignoring invalid stats for " + entry.getKey());
+            }
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private MirrorStats getStats(String host) {
+        MirrorStats stats = mStats.get(host);
+        if (stats == null) {
+            stats = new MirrorStats();
+            mStats.put(host, stats);
+        }
+        return stats;
+    }
+
+    private void save(String host, MirrorStats stats) {
+        stats.lastUpdate = System.currentTimeMillis();
+        try {
+            mPreferences.edit().putString(host, stats.toJson().toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not save stats for " + host, e);
+        }
+    }
+
+    /**
+     * Sort the given URLs, ordered by the priority assigned by the server, so that
+     * the mirrors expected to be the fastest come first. Mirrors without stats are
+     * tried after the known ones. Some downloads keep the original order so that
+     * new or previously slow mirrors get measured again.
+     */
+    public synchronized List<String> order(List<String> urls) {
+        List<String> ordered = new ArrayList<>(urls);
+        if (ordered.size() < 2 || mRandom.nextDouble() < EXPLORATION_RATE) {
+            return ordered;
+        }
+        final Map<String, Double> scores = new HashMap<>();
+        for (String url : ordered) {
+            MirrorStats stats = mStats.get(getHost(url));
+            scores.put(url, stats != null ? stats.getScore() : 0);
+        }
+        // The sort is stable, so the server priority is kept for equal scores
+        Collections.sort(ordered, (u1, u2) -> Double.compare(scores.get(u2), scores.get(u1)));
+        return ordered;
+    }
+
+    public synchronized void recordConnection(String url, long connectMillis,
+            long firstByteMillis) {
+        String host = getHost(url);
+        MirrorStats stats = getStats(host);
+        stats.connectMillis = MirrorStats.average(stats.connectMillis, connectMillis);
+        stats.firstByteMillis = MirrorStats.average(stats.firstByteMillis, firstByteMillis);
+        stats.failureRate = MirrorStats.average(stats.failureRate, 0);
+        stats.samples++;
+        save(host, stats);
+    }
+
+    public synchronized void recordTransfer(String url, long bytes, long millis) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || millis <= 0) {
+            return;
+        }
+        String host = getHost(url);
+        MirrorStats stats = getStats(host);
+        stats.bytesPerSecond = MirrorStats.average(stats.bytesPerSecond,
+                bytes * 1000.0 / millis);
+        Metrics.getInstance().histogram(Metrics.DOWNLOAD_THROUGHPUT_KBPS + host)
+                .record(bytes * 1000 / 1024 / millis);
+        save(host, stats);
+    }
+
+    public synchronized void recordFailure(String url) {
+        String host = getHost(url);
+        MirrorStats stats = getStats(host);
+        stats.failureRate = MirrorStats.average(stats.failureRate, 1);
+        stats.samples++;
+        save(host, stats);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+/**
+ * Estimates the speed of a transfer from the amount of bytes transferred over time.
+ */
+public interface SpeedEstimator {
+
+    enum Model {
+        /**
+         * Exponential moving average weighted by the time elapsed between samples
+         */
+        TIME_WEIGHTED_EMA,
+        /**
+         * Percentile of the speeds measured in a sliding window, ignores short
+         * bursts and stalls
+         */
+        WINDOWED_PERCENTILE,
+    }
+
+    /**
+     * Record the total amount of bytes transferred so far
+     *
+     * @param bytes bytes transferred since the beginning of the transfer
+     * @param timeMillis monotonic time of the sample, e.g. SystemClock.elapsedRealtime()
+     */
+    void addSample(long bytes, long timeMillis);
+
+    /**
+     * @return the estimated speed in bytes per second, or -1 if not known yet
+     */
+    long getSpeed();
+
+    static SpeedEstimator create(Model model) {
+        switch (model) {
+            case WINDOWED_PERCENTILE:
+                return new WindowedPercentileSpeedEstimator();
+            case TIME_WEIGHTED_EMA:
+            default:
+                return new EmaSpeedEstimator();
+        }
+    }
+
+    /**
+     * @param name the name of a model in lower case, e.g. "windowed_percentile"
+     * @return the model, or TIME_WEIGHTED_EMA if the name isn't known
+     */
+    static Model getModel(String name) {
+        for (Model model : Model.values()) {
+            if (model.name().equalsIgnoreCase(name)) {
+                return model;
+            }
+        }
+        return Model.TIME_WEIGHTED_EMA;
+    }
+
+    /**
+     * @return the estimated time in seconds needed to transfer the remaining bytes,
+     *         or -1 if not known
+     */
+    static long getEta(SpeedEstimator estimator, long remainingBytes) {
+        long speed = estimator.getSpeed();
+        if (speed <= 0 || remainingBytes < 0) {
+            return -1;
+        }
+        return remainingBytes / speed;
+    }
+}
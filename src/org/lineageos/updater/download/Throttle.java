@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.SystemClock;
+
+/**
+ * Limits the speed of a transfer by making the thread reading it wait.
+ */
+class Throttle {
+
+    // Time spent below the limit that can be made up with a burst
+    private static final long MAX_CREDIT_MS = 1000;
+
+    private final long mBytesPerSecond;
+    private long mStartMillis = -1;
+    private long mBytes;
+
+    Throttle(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Account for the bytes just read and wait until they fit the limit. If the
+     * thread is interrupted, return early with the interrupted flag set.
+     */
+    void onBytesRead(long count) {
+        long now = SystemClock.elapsedRealtime();
+        if (mStartMillis < 0) {
+            mStartMillis = now;
+        }
+        mBytes += count;
+        long wait = mBytes * 1000 / mBytesPerSecond - (now - mStartMillis);
+        if (wait < -MAX_CREDIT_MS) {
+            // Slower than the limit for a while, e.g. a bad network
+            mStartMillis = now;
+            mBytes = 0;
+        } else if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.util.Arrays;
+
+/**
+ * Reports a percentile of the speeds measured over fixed intervals in a sliding
+ * window. Unlike an average, short bursts and brief stalls, common on mobile
+ * links, don't move the estimate.
+ */
+class WindowedPercentileSpeedEstimator implements SpeedEstimator {
+
+    private static final long INTERVAL_MS = 500;
+    // 20 seconds
+    private static final int WINDOW_SIZE = 40;
+    private static final double PERCENTILE = 0.5;
+
+    private final double[] mSpeeds = new double[WINDOW_SIZE];
+    private final double[] mSorted = new double[WINDOW_SIZE];
+    private int mCount = 0;
+    private int mNext = 0;
+
+    private long mLastBytes = -1;
+    private long mLastMillis;
+    private long mSpeed = -1;
+
+    @Override
+    public void addSample(long bytes, long timeMillis) {
+        if (mLastBytes < 0) {
+            mLastBytes = bytes;
+            mLastMillis = timeMillis;
+            return;
+        }
+        final long delta = timeMillis - mLastMillis;
+        if (delta < INTERVAL_MS) {
+            return;
+        }
+        final double curSpeed = (bytes - mLastBytes) * 1000.0 / delta;
+        // A sample covering several intervals counts once for each of them
+        long intervals = Math.min(delta / INTERVAL_MS, WINDOW_SIZE);
+        for (long i = 0; i < intervals; i++) {
+            mSpeeds[mNext] = curSpeed;
+            mNext = (mNext + 1) % WINDOW_SIZE;
+            mCount = Math.min(mCount + 1, WINDOW_SIZE);
+        }
+        mLastBytes = bytes;
+        mLastMillis = timeMillis;
+
+        System.arraycopy(mSpeeds, 0, mSorted, 0, mCount);
+        Arrays.sort(mSorted, 0, mCount);
+        mSpeed = Math.round(mSorted[(int) Math.round(PERCENTILE * (mCount - 1))]);
+    }
+
+    @Override
+    public long getSpeed() {
+        return mSpeed;
+    }
+}
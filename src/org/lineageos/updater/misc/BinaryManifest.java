@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.lineageos.updater.model.IncrementalPackage;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact alternative to the json updates list, see the README for the format.
+ * Servers can send it when the request accepts {@link #MIME_TYPE}.
+ */
+public final class BinaryManifest {
+
+    public static final String MIME_TYPE = "application/vnd.lineageos.updater-manifest";
+
+    private static final byte[] MAGIC = { 'U', 'P', 'D', 'M' };
+    private static final int VERSION = 1;
+
+    // Upper bounds, to fail early on corrupted data
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+    private static final int MAX_COUNT = 64 * 1024;
+
+    private final long mMinCheckInterval;
+    private final List<UpdateInfo> mUpdates;
+
+    private BinaryManifest(long minCheckInterval, List<UpdateInfo> updates) {
+        mMinCheckInterval = minCheckInterval;
+        mUpdates = updates;
+    }
+
+    /**
+     * Check whether the stream starts with a binary manifest. The stream must
+     * support mark and reset, its position is not changed.
+     */
+    public static boolean isBinaryManifest(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    public static BinaryManifest parse(InputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (in.read() != b) {
+                throw new IOException("Not a binary manifest");
+            }
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary manifest version " + version);
+        }
+        long minCheckInterval = readVarLong(in);
+        int count = readCount(in);
+        List<UpdateInfo> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Update update = new Update();
+            update.setTimestamp(readVarLong(in));
+            update.setName(readString(in));
+            update.setDownloadId(readString(in));
+            update.setType(readString(in));
+            update.setFileSize(readVarLong(in));
+            update.setDownloadUrl(readString(in));
+            update.setVersion(readString(in));
+            update.setIncrementals(readIncrementals(in));
+            updates.add(update);
+        }
+        return new BinaryManifest(minCheckInterval, updates);
+    }
+
+    private static List<IncrementalPackage> readIncrementals(InputStream in) throws IOException {
+        int count = readCount(in);
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<IncrementalPackage> incrementals = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long sourceTimestamp = readVarLong(in);
+            String sourceIncremental = readString(in);
+            incrementals.add(new IncrementalPackage(
+                    sourceTimestamp,
+                    sourceIncremental.isEmpty() ? null : sourceIncremental,
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    readVarLong(in)));
+        }
+        return incrementals;
+    }
+
+    /**
+     * @return the minimum number of seconds between checks, or 0
+     */
+    public long getMinCheckInterval() {
+        return mMinCheckInterval;
+    }
+
+    public List<UpdateInfo> getUpdates() {
+        return mUpdates;
+    }
+
+    // Unsigned LEB128
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readCount(InputStream in) throws IOException {
+        long count = readVarLong(in);
+        if (count > MAX_COUNT) {
+            throw new IOException("Invalid count " + count);
+        }
+        return (int) count;
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = in.read(bytes, offset, bytes.length - offset);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -27,6 +27,11 @@ public final class Constants {
     public static final int AUTO_UPDATES_CHECK_INTERVAL_WEEKLY = 2;
     public static final int AUTO_UPDATES_CHECK_INTERVAL_MONTHLY = 3;
 
+    public static final int PACKAGE_CACHE_BUDGET_2GB = 0;
+    public static final int PACKAGE_CACHE_BUDGET_4GB = 1;
+    public static final int PACKAGE_CACHE_BUDGET_8GB = 2;
+    public static final int PACKAGE_CACHE_BUDGET_UNLIMITED = 3;
+
     public static final String PREF_LAST_UPDATE_CHECK = "last_update_check";
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_AUTO_DELETE_UPDATES = "auto_delete_updates";
@@ -34,6 +39,10 @@ public final class Constants {
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String PREF_RELEASE_TYPE = "release_type";
+    public static final String PREF_AB_PIPELINED_INSTALL = "ab_pipelined_install";
+    public static final String PREF_UPDATE_CHECK_NOT_BEFORE = "update_check_not_before";
+    public static final String PREF_PACKAGE_CACHE_BUDGET = "package_cache_budget";
+    public static final String PREF_PREFETCH_UPDATES = "prefetch_updates";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
     public static final String DEFAULT_RELEASE_TYPE = "__default__";
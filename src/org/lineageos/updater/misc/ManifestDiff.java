@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import org.lineageos.updater.model.IncrementalPackage;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Differences between two updates lists. Instead of keeping the previous list
+ * around, only a fingerprint of each update is stored, so the new list can be
+ * compared with the previous one without parsing it again.
+ */
+public final class ManifestDiff {
+
+    private static final String TAG = "ManifestDiff";
+
+    private static final int FINGERPRINTS_VERSION = 1;
+
+    private final Set<String> mIds;
+    private final Set<String> mAdded;
+    private final Set<String> mRemoved;
+    private final Set<String> mChanged;
+    private final Map<String, Long> mFingerprints;
+    private final boolean mHasPrevious;
+
+    private ManifestDiff(Set<String> ids, Set<String> added, Set<String> removed,
+            Set<String> changed, Map<String, Long> fingerprints, boolean hasPrevious) {
+        mIds = Collections.unmodifiableSet(ids);
+        mAdded = Collections.unmodifiableSet(added);
+        mRemoved = Collections.unmodifiableSet(removed);
+        mChanged = Collections.unmodifiableSet(changed);
+        mFingerprints = fingerprints;
+        mHasPrevious = hasPrevious;
+    }
+
+    /**
+     * Compare a list of updates with the fingerprints of the previous one
+     *
+     * @param previous fingerprints of the previous list, or null if unknown. In
+     *                 this case, nothing is reported as added or changed.
+     */
+    public static ManifestDiff compute(Map<String, Long> previous, List<UpdateInfo> updates) {
+        Set<String> ids = new HashSet<>();
+        Set<String> added = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        Map<String, Long> fingerprints = new HashMap<>();
+        for (UpdateInfo update : updates) {
+            String id = update.getDownloadId();
+            long fingerprint = fingerprint(update);
+            ids.add(id);
+            fingerprints.put(id, fingerprint);
+            if (previous == null) {
+                continue;
+            }
+            Long previousFingerprint = previous.get(id);
+            if (previousFingerprint == null) {
+                added.add(id);
+            } else if (previousFingerprint != fingerprint) {
+                changed.add(id);
+            }
+        }
+        Set<String> removed = new HashSet<>();
+        if (previous != null) {
+            for (String id : previous.keySet()) {
+                if (!ids.contains(id)) {
+                    removed.add(id);
+                }
+            }
+        }
+        return new ManifestDiff(ids, added, removed, changed, fingerprints, previous != null);
+    }
+
+    /**
+     * @return the ids of all the updates in the new list
+     */
+    public Set<String> getIds() {
+        return mIds;
+    }
+
+    public Set<String> getAdded() {
+        return mAdded;
+    }
+
+    public Set<String> getRemoved() {
+        return mRemoved;
+    }
+
+    public Set<String> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @return true if the update is in both lists and didn't change
+     */
+    public boolean isUnchanged(String downloadId) {
+        return mHasPrevious && mIds.contains(downloadId) && !mAdded.contains(downloadId) &&
+                !mChanged.contains(downloadId);
+    }
+
+    public boolean hasPrevious() {
+        return mHasPrevious;
+    }
+
+    /**
+     * @return true if the new list has updates that weren't in the previous one
+     */
+    public boolean hasNewUpdates() {
+        return !mAdded.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + mAdded.size() + " removed=" + mRemoved.size() + " changed=" +
+                mChanged.size() + " total=" + mIds.size();
+    }
+
+    public static Map<String, Long> getFingerprints(List<UpdateInfo> updates) {
+        Map<String, Long> fingerprints = new HashMap<>();
+        for (UpdateInfo update : updates) {
+            fingerprints.put(update.getDownloadId(), fingerprint(update));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Fingerprint of the attributes of an update that matter to the controller
+     */
+    static long fingerprint(UpdateInfo update) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, update.getName());
+        hash = mix(hash, update.getDownloadUrl());
+        hash = mix(hash, update.getType());
+        hash = mix(hash, update.getVersion());
+        hash = mix(hash, update.getTimestamp());
+        hash = mix(hash, update.getFileSize());
+        for (IncrementalPackage incremental : update.getIncrementals()) {
+            hash = mix(hash, incremental.getDownloadId());
+            hash = mix(hash, incremental.getDownloadUrl());
+            hash = mix(hash, incremental.getFileSize());
+            hash = mix(hash, incremental.getSourceTimestamp());
+            hash = mix(hash, incremental.getSourceIncremental());
+        }
+        return hash;
+    }
+
+    // FNV-1a, 64 bit
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return mix(hash, -1L);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // Separate consecutive strings
+        return mix(hash, value.length());
+    }
+
+    /**
+     * @return the fingerprints saved with {@link #writeFingerprints}, or null if
+     *         they don't exist or can't be read
+     */
+    public static Map<String, Long> readFingerprints(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FINGERPRINTS_VERSION) {
+                Log.d(TAG, "Ignoring fingerprints with a different version");
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, Long> fingerprints = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                fingerprints.put(in.readUTF(), in.readLong());
+            }
+            return fingerprints;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read fingerprints", e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the fingerprints of the new list, so that the next list can be compared
+     * with it
+     */
+    public boolean writeFingerprints(File file) {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FINGERPRINTS_VERSION);
+            out.writeInt(mFingerprints.size());
+            for (Map.Entry<String, Long> entry : mFingerprints.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write fingerprints", e);
+            tmp.delete();
+            return false;
+        }
+        return tmp.renameTo(file);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, gauges and histograms collected since the process started. They
+ * are printed by the dump of UpdaterService, as text or as JSON.
+ */
+public class Metrics {
+
+    public static final String CHECK_LATENCY_MS = "check.latency_ms";
+    public static final String CHECK_FAILURES = "check.failures";
+    public static final String MANIFEST_SIZE_BYTES = "check.manifest_bytes";
+    public static final String PARSE_TIME_MS = "check.parse_ms";
+    // Followed by the host of the mirror
+    public static final String DOWNLOAD_THROUGHPUT_KBPS = "download.throughput_kbps.";
+    public static final String VERIFICATION_TIME_MS = "verify.duration_ms";
+    public static final String VERIFICATION_FAILURES = "verify.failures";
+    public static final String DB_WRITE_LATENCY_US = "db.write_us";
+    public static final String CONNECTION_REQUESTS = "connections.requests";
+    public static final String CONNECTION_RELEASED = "connections.released";
+    public static final String CONNECTION_DISCARDED = "connections.discarded";
+    public static final String CONNECTION_TLS = "connections.tls";
+    public static final String CONNECTION_TLS_REUSED = "connections.tls_reused";
+    public static final String CONNECTION_FULL_HANDSHAKES = "connections.full_handshakes";
+    public static final String CONNECTION_RESUMED_HANDSHAKES = "connections.resumed_handshakes";
+    public static final String INSTALL_APPLY_MS = "install.apply_ms";
+    public static final String INSTALL_FINALIZING_MS = "install.finalizing_ms";
+    public static final String INSTALL_SUSPENDED_MS = "install.suspended_ms";
+    public static final String INSTALL_FAILURES = "install.failures";
+    // Followed by the reason, see InstallPolicyScheduler.Decision
+    public static final String INSTALL_POLICY_PAUSES = "install.policy_pauses.";
+    public static final String INSTALL_POLICY_PAUSED_MS = "install.policy_paused_ms";
+
+    private static final Metrics sInstance = new Metrics();
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final Map<String, Counter> mCounters = new TreeMap<>();
+    private final Map<String, Gauge> mGauges = new TreeMap<>();
+    private final Map<String, Histogram> mHistograms = new TreeMap<>();
+
+    public static Metrics getInstance() {
+        return sInstance;
+    }
+
+    private Metrics() {
+    }
+
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static final class Gauge {
+        private volatile long mValue;
+
+        public void set(long value) {
+            mValue = value;
+        }
+
+        public long get() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Distribution of non-negative values. Bucket i counts the values below
+     * 2^i, so percentiles are accurate within a factor of 2.
+     */
+    public static final class Histogram {
+        private final long[] mBuckets = new long[64];
+        private long mCount;
+        private long mSum;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax = Long.MIN_VALUE;
+
+        public synchronized void record(long value) {
+            value = Math.max(value, 0);
+            mBuckets[64 - Long.numberOfLeadingZeros(value)]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        /**
+         * @return an upper bound of the given percentile, or 0 if empty
+         */
+        public synchronized long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(getUpperBound(i), mMax);
+                }
+            }
+            return 0;
+        }
+
+        private static long getUpperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+        private synchronized void dump(PrintWriter pw, String name) {
+            if (mCount == 0) {
+                pw.println("    " + name + ": empty");
+                return;
+            }
+            pw.println("    " + name + ": count=" + mCount + " mean=" + mSum / mCount +
+                    " min=" + mMin + " p50=" + getPercentile(50) + " p90=" +
+                    getPercentile(90) + " p99=" + getPercentile(99) + " max=" + mMax);
+        }
+
+        private synchronized JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", mCount);
+            json.put("sum", mSum);
+            if (mCount > 0) {
+                json.put("min", mMin);
+                json.put("max", mMax);
+            }
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (mBuckets[i] != 0) {
+                    JSONObject bucket = new JSONObject();
+                    bucket.put("le", getUpperBound(i));
+                    bucket.put("count", mBuckets[i]);
+                    buckets.put(bucket);
+                }
+            }
+            json.put("buckets", buckets);
+            return json;
+        }
+    }
+
+    public synchronized Counter counter(String name) {
+        return mCounters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public synchronized Gauge gauge(String name) {
+        return mGauges.computeIfAbsent(name, k -> new Gauge());
+    }
+
+    public synchronized Histogram histogram(String name) {
+        return mHistograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Metrics since " + new Date(mStartTime) + ":");
+        pw.println("  Counters:");
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            pw.println("    " + entry.getKey() + ": " + entry.getValue().get());
+        }
+        pw.println("  Gauges:");
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            pw.println("    " + entry.getKey() + ": " + entry.getValue().get());
+        }
+        pw.println("  Histograms:");
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            entry.getValue().dump(pw, entry.getKey());
+        }
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject gauges = new JSONObject();
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().toJson());
+        }
+        JSONObject json = new JSONObject();
+        json.put("start_time", mStartTime);
+        json.put("counters", counters);
+        json.put("gauges", gauges);
+        json.put("histograms", histograms);
+        return json;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spans following an update from the check to the installation. Each update
+ * gets a span that covers all of its stages, each stage gets a child span.
+ * Stages start and end on different threads, so they're recorded as async
+ * sections and show up as separate tracks in systrace and Perfetto.
+ */
+public final class Tracer {
+
+    public static final String STAGE_CHECK = "check";
+    public static final String STAGE_DOWNLOAD = "download";
+    public static final String STAGE_VERIFY = "verify";
+    public static final String STAGE_INSTALL = "install";
+
+    private static final String PREFIX = "Updater:";
+
+    public interface Recorder {
+        void begin(String name, int cookie);
+
+        void end(String name, int cookie);
+    }
+
+    /**
+     * Writes the spans to the system trace. Needs Android 10, older versions
+     * have no async sections.
+     */
+    public static final class SystraceRecorder implements Recorder {
+        private static final boolean SUPPORTED =
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+
+        @Override
+        public void begin(String name, int cookie) {
+            if (SUPPORTED) {
+                Trace.beginAsyncSection(name, cookie);
+            }
+        }
+
+        @Override
+        public void end(String name, int cookie) {
+            if (SUPPORTED) {
+                Trace.endAsyncSection(name, cookie);
+            }
+        }
+    }
+
+    /**
+     * Keeps the spans in memory, e.g. to check them from a unit test.
+     */
+    public static final class BufferRecorder implements Recorder {
+        public static final class Event {
+            public final boolean begin;
+            public final String name;
+            public final int cookie;
+            public final long timeMillis;
+
+            Event(boolean begin, String name, int cookie) {
+                this.begin = begin;
+                this.name = name;
+                this.cookie = cookie;
+                this.timeMillis = SystemClock.elapsedRealtime();
+            }
+        }
+
+        private final List<Event> mEvents = new ArrayList<>();
+
+        @Override
+        public synchronized void begin(String name, int cookie) {
+            mEvents.add(new Event(true, name, cookie));
+        }
+
+        @Override
+        public synchronized void end(String name, int cookie) {
+            mEvents.add(new Event(false, name, cookie));
+        }
+
+        public synchronized List<Event> getEvents() {
+            return new ArrayList<>(mEvents);
+        }
+    }
+
+    private static Recorder sRecorder = new SystraceRecorder();
+    // Open spans, children after their parent
+    private static final Map<String, Integer> sOpenSpans = new LinkedHashMap<>();
+    private static int sNextCookie = 1;
+
+    private Tracer() {
+    }
+
+    public static synchronized void setRecorder(Recorder recorder) {
+        sRecorder = recorder;
+        sOpenSpans.clear();
+    }
+
+    /**
+     * Start a stage of an update, and the span of the update if needed. Does
+     * nothing if the stage is already running.
+     *
+     * @param downloadId the update, or null for stages not tied to an update
+     */
+    public static synchronized void beginStage(String downloadId, String stage) {
+        if (downloadId != null) {
+            begin(getUpdateSpanName(downloadId));
+        }
+        begin(getStageSpanName(downloadId, stage));
+    }
+
+    public static synchronized void endStage(String downloadId, String stage) {
+        end(getStageSpanName(downloadId, stage));
+    }
+
+    /**
+     * End the stage that completes an update. The span of the update ends
+     * too, unless other stages are still running: with pipelined installs,
+     * the download and the verification can outlive the installation.
+     */
+    public static synchronized void endFinalStage(String downloadId, String stage) {
+        end(getStageSpanName(downloadId, stage));
+        String stagePrefix = getUpdateSpanName(downloadId) + "/";
+        for (String span : sOpenSpans.keySet()) {
+            if (span.startsWith(stagePrefix)) {
+                return;
+            }
+        }
+        end(getUpdateSpanName(downloadId));
+    }
+
+    /**
+     * End the span of the update and all its stages still running.
+     */
+    public static synchronized void endUpdate(String downloadId) {
+        String updateSpan = getUpdateSpanName(downloadId);
+        if (!sOpenSpans.containsKey(updateSpan)) {
+            return;
+        }
+        String stagePrefix = updateSpan + "/";
+        Iterator<Map.Entry<String, Integer>> iterator = sOpenSpans.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Integer> span = iterator.next();
+            if (span.getKey().startsWith(stagePrefix)) {
+                sRecorder.end(span.getKey(), span.getValue());
+                iterator.remove();
+            }
+        }
+        end(updateSpan);
+    }
+
+    private static String getUpdateSpanName(String downloadId) {
+        return PREFIX + downloadId;
+    }
+
+    private static String getStageSpanName(String downloadId, String stage) {
+        return downloadId != null ? getUpdateSpanName(downloadId) + "/" + stage :
+                PREFIX + stage;
+    }
+
+    private static void begin(String name) {
+        if (sOpenSpans.containsKey(name)) {
+            return;
+        }
+        int cookie = sNextCookie++;
+        sOpenSpans.put(name, cookie);
+        sRecorder.begin(name, cookie);
+    }
+
+    private static void end(String name) {
+        Integer cookie = sOpenSpans.remove(name);
+        if (cookie != null) {
+            sRecorder.end(name, cookie);
+        }
+    }
+}
@@ -23,10 +23,13 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.os.Environment;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -38,20 +41,25 @@ import org.json.JSONObject;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.controller.UpdaterService;
+import org.lineageos.updater.model.IncrementalPackage;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateBaseInfo;
 import org.lineageos.updater.model.UpdateInfo;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -97,6 +105,10 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    public static File getCachedUpdateFingerprints(Context context) {
+        return new File(context.getCacheDir(), "updates.fingerprints");
+    }
+
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
     private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
@@ -108,9 +120,69 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version"));
+        update.setIncrementals(parseJsonIncrementals(object.optJSONArray("incrementals")));
         return update;
     }
 
+    private static List<IncrementalPackage> parseJsonIncrementals(JSONArray array) {
+        if (array == null || array.length() == 0) {
+            return Collections.emptyList();
+        }
+        List<IncrementalPackage> incrementals = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            try {
+                JSONObject object = array.getJSONObject(i);
+                incrementals.add(new IncrementalPackage(
+                        object.optLong("source_build_date", 0),
+                        object.optString("source_incremental", null),
+                        object.getString("filename"),
+                        object.getString("md5"),
+                        object.getString("url"),
+                        object.getLong("size")));
+            } catch (JSONException e) {
+                Log.e(TAG, "Could not parse incremental package, index=" + i, e);
+            }
+        }
+        return incrementals;
+    }
+
+    /**
+     * Check whether the given incremental package can be applied on top of the
+     * current build
+     */
+    public static boolean isApplicable(IncrementalPackage incremental) {
+        if (incremental.getSourceTimestamp() > 0 && incremental.getSourceTimestamp() !=
+                SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
+            return false;
+        }
+        if (incremental.getSourceIncremental() != null && !incremental.getSourceIncremental()
+                .equals(SystemProperties.get(Constants.PROP_BUILD_VERSION_INCREMENTAL))) {
+            return false;
+        }
+        // Packages without any source build information can't be matched
+        return incremental.getSourceTimestamp() > 0 || incremental.getSourceIncremental() != null;
+    }
+
+    /**
+     * Get the smallest incremental package that can be applied on top of the current
+     * build and that is smaller than the full package
+     *
+     * @return the incremental package, or null if the full package should be used
+     */
+    public static IncrementalPackage getApplicableIncremental(UpdateBaseInfo update) {
+        IncrementalPackage selected = null;
+        for (IncrementalPackage incremental : update.getIncrementals()) {
+            if (!isApplicable(incremental)) {
+                continue;
+            }
+            long size = selected != null ? selected.getFileSize() : update.getFileSize();
+            if (size <= 0 || incremental.getFileSize() < size) {
+                selected = incremental;
+            }
+        }
+        return selected;
+    }
+
     public static boolean isCompatible(UpdateBaseInfo update, Context context) {
         if (update.getVersion().compareTo(SystemProperties.get(getProjectProp(Constants.PROP_BUILD_VERSION))) < 0) {
             Log.d(TAG, update.getName() + " is older than current Android version");
@@ -132,38 +204,144 @@ public class Utils {
         return (update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0));
     }
 
+    /**
+     * Open the updates list, decompressing it if needed
+     */
+    private static InputStream openUpdatesList(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        if (gzip) {
+            in = new BufferedInputStream(new GZIPInputStream(in));
+        }
+        return in;
+    }
+
+    /**
+     * Parse the updates list. The list can be json or a binary manifest, optionally
+     * gzip compressed. Json lists are streamed, only one update object at a time is
+     * kept in memory.
+     */
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly, Context context)
             throws IOException, JSONException {
         List<UpdateInfo> updates = new ArrayList<>();
 
-        String json = "";
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null;) {
-                json += line;
+        try (InputStream in = openUpdatesList(file)) {
+            if (BinaryManifest.isBinaryManifest(in)) {
+                for (UpdateInfo update : BinaryManifest.parse(in).getUpdates()) {
+                    if (!compatibleOnly || isCompatible(update, context)) {
+                        updates.add(update);
+                    } else {
+                        Log.d(TAG, "Ignoring incompatible update " + update.getName());
+                    }
+                }
+                return updates;
             }
-        }
 
-        JSONObject obj = new JSONObject(json);
-        JSONArray updatesList = obj.getJSONArray("results");
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
-                continue;
-            }
-            try {
-                UpdateInfo update = parseJsonUpdate(updatesList.getJSONObject(i));
-                if (!compatibleOnly || isCompatible(update, context)) {
-                    updates.add(update);
-                } else {
-                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            boolean found = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"results".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, "Could not parse update object, index=" + i, e);
+                found = true;
+                reader.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    try {
+                        UpdateInfo update = parseJsonUpdate(readJsonObject(reader));
+                        if (!compatibleOnly || isCompatible(update, context)) {
+                            updates.add(update);
+                        } else {
+                            Log.d(TAG, "Ignoring incompatible update " + update.getName());
+                        }
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Could not parse update object, index=" + i, e);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            if (!found) {
+                throw new JSONException("No value for results");
             }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
         }
 
         return updates;
     }
 
+    private static JSONObject readJsonObject(JsonReader reader)
+            throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            object.put(reader.nextName(), readJsonValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static Object readJsonValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readJsonObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readJsonValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            default:
+                return reader.nextString();
+        }
+    }
+
+    /**
+     * @return the minimum interval between checks requested by the server with the
+     *         optional min_check_interval attribute, in milliseconds, or 0
+     */
+    public static long getMinCheckInterval(File file) throws IOException, JSONException {
+        try (InputStream in = openUpdatesList(file)) {
+            if (BinaryManifest.isBinaryManifest(in)) {
+                return BinaryManifest.parse(in).getMinCheckInterval() * 1000;
+            }
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("min_check_interval".equals(reader.nextName()) &&
+                        reader.peek() == JsonToken.NUMBER) {
+                    return Math.max(0, reader.nextLong()) * 1000;
+                }
+                reader.skipValue();
+            }
+            return 0;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
     public static String getServerURL(Context context) {
         String incrementalVersion = SystemProperties.get(Constants.PROP_BUILD_VERSION_INCREMENTAL);
         String device = SystemProperties.get(Constants.PROP_NEXT_DEVICE,
@@ -199,46 +377,18 @@ public class Utils {
         context.startService(intent);
     }
 
-    public static boolean isNetworkAvailable(Context context) {
+    private static NetworkCapabilities getActiveNetworkCapabilities(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
-        NetworkInfo info = cm.getActiveNetworkInfo();
-        return !(info == null || !info.isConnected() || !info.isAvailable());
+        Network network = cm.getActiveNetwork();
+        return network != null ? cm.getNetworkCapabilities(network) : null;
     }
 
     public static boolean isOnWifiOrEthernet(Context context) {
-        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
-                Context.CONNECTIVITY_SERVICE);
-        NetworkInfo info = cm.getActiveNetworkInfo();
-        return (info != null && (info.getType() == ConnectivityManager.TYPE_ETHERNET
-                || info.getType() == ConnectivityManager.TYPE_WIFI));
-    }
-
-    /**
-     * Compares two json formatted updates list files
-     *
-     * @param oldJson old update list
-     * @param newJson new update list
-     * @return true if newJson has at least a compatible update not available in oldJson
-     * @throws IOException
-     * @throws JSONException
-     */
-    public static boolean checkForNewUpdates(File oldJson, File newJson, Context context)
-            throws IOException, JSONException {
-        List<UpdateInfo> oldList = parseJson(oldJson, true, context);
-        List<UpdateInfo> newList = parseJson(newJson, true, context);
-        Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldIds.add(update.getDownloadId());
-        }
-        // In case of no new updates, the old list should
-        // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldIds.contains(update.getDownloadId())) {
-                return true;
-            }
-        }
-        return false;
+        NetworkCapabilities capabilities = getActiveNetworkCapabilities(context);
+        return capabilities != null &&
+                (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET) ||
+                capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI));
     }
 
     /**
@@ -285,7 +435,8 @@ public class Utils {
     /**
      * Cleanup the download directory, which is assumed to be a privileged location
      * the user can't access and that might have stale files. This can happen if
-     * the data of the application are wiped.
+     * the data of the application are wiped. Since the known paths are looked up
+     * in a set, this is cheap enough to run every time.
      *
      * @param context
      */
@@ -310,11 +461,6 @@ public class Utils {
             }
         }
 
-        final String DOWNLOADS_CLEANUP_DONE = "cleanup_done";
-        if (preferences.getBoolean(DOWNLOADS_CLEANUP_DONE, false)) {
-            return;
-        }
-
         Log.d(TAG, "Cleaning " + downloadPath);
         if (!downloadPath.isDirectory()) {
             return;
@@ -324,20 +470,16 @@ public class Utils {
             return;
         }
 
-        // Ideally the database is empty when we get here
+        // Stale files were left by a wipe of the data or by a download
+        // interrupted before it was saved, the database knows all the others
         UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
-        List<String> knownPaths = new ArrayList<>();
-        for (UpdateInfo update : dbHelper.getUpdates()) {
-            knownPaths.add(update.getFile().getAbsolutePath());
-        }
+        Set<String> knownPaths = dbHelper.getPackagePaths();
         for (File file : files) {
-            if (!knownPaths.contains(file.getAbsolutePath())) {
+            if (file.isFile() && !knownPaths.contains(file.getAbsolutePath())) {
                 Log.d(TAG, "Deleting " + file.getAbsolutePath());
                 file.delete();
             }
         }
-
-        preferences.edit().putBoolean(DOWNLOADS_CLEANUP_DONE, true).apply();
     }
 
     public static File appendSequentialNumber(final File file) {
@@ -404,6 +546,11 @@ public class Utils {
         return getUpdateCheckSetting(context) != Constants.AUTO_UPDATES_CHECK_INTERVAL_NEVER;
     }
 
+    public static boolean isPrefetchEnabled(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(Constants.PREF_PREFETCH_UPDATES, false);
+    }
+
     public static long getUpdateCheckInterval(Context context) {
         switch (Utils.getUpdateCheckSetting(context)) {
             case Constants.AUTO_UPDATES_CHECK_INTERVAL_DAILY:
@@ -416,6 +563,29 @@ public class Utils {
         }
     }
 
+    public static int getPackageCacheSetting(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getInt(Constants.PREF_PACKAGE_CACHE_BUDGET,
+                Constants.PACKAGE_CACHE_BUDGET_4GB);
+    }
+
+    /**
+     * @return the maximum number of bytes the downloaded packages can take
+     */
+    public static long getPackageCacheBudget(Context context) {
+        switch (getPackageCacheSetting(context)) {
+            case Constants.PACKAGE_CACHE_BUDGET_2GB:
+                return 2L * 1024 * 1024 * 1024;
+            case Constants.PACKAGE_CACHE_BUDGET_4GB:
+            default:
+                return 4L * 1024 * 1024 * 1024;
+            case Constants.PACKAGE_CACHE_BUDGET_8GB:
+                return 8L * 1024 * 1024 * 1024;
+            case Constants.PACKAGE_CACHE_BUDGET_UNLIMITED:
+                return Long.MAX_VALUE;
+        }
+    }
+
     public static String getDevice(Context context) {
         return SystemProperties.get(getProjectProp(Constants.PROP_DEVICE));
     }
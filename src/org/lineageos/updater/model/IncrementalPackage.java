@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+/**
+ * Package that updates a specific source build to the build it belongs to.
+ */
+public class IncrementalPackage {
+
+    private final long mSourceTimestamp;
+    private final String mSourceIncremental;
+    private final String mName;
+    private final String mDownloadId;
+    private final String mDownloadUrl;
+    private final long mFileSize;
+
+    public IncrementalPackage(long sourceTimestamp, String sourceIncremental, String name,
+            String downloadId, String downloadUrl, long fileSize) {
+        mSourceTimestamp = sourceTimestamp;
+        mSourceIncremental = sourceIncremental;
+        mName = name;
+        mDownloadId = downloadId;
+        mDownloadUrl = downloadUrl;
+        mFileSize = fileSize;
+    }
+
+    /**
+     * @return the build date of the source build, or 0 if not specified
+     */
+    public long getSourceTimestamp() {
+        return mSourceTimestamp;
+    }
+
+    /**
+     * @return the incremental version of the source build, or null if not specified
+     */
+    public String getSourceIncremental() {
+        return mSourceIncremental;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+}
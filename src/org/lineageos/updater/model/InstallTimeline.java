@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+/**
+ * Where the time of an A/B installation went.
+ */
+public class InstallTimeline {
+
+    // The installation didn't complete, e.g. because the app was killed
+    public static final int ERROR_CODE_UNKNOWN = -1;
+
+    private String mDownloadId;
+    private long mStartTime;
+    private long mEndTime;
+    private long mFileSize;
+    private boolean mStreaming;
+    private long mApplyMillis;
+    private long mFinalizingMillis;
+    private long mSuspendedMillis;
+    private int mSuspendCount;
+    private int mErrorCode = ERROR_CODE_UNKNOWN;
+
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    public void setDownloadId(String downloadId) {
+        mDownloadId = downloadId;
+    }
+
+    /**
+     * @return the wall clock time the installation started at, in milliseconds
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public void setStartTime(long startTime) {
+        mStartTime = startTime;
+    }
+
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    public void setEndTime(long endTime) {
+        mEndTime = endTime;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        mFileSize = fileSize;
+    }
+
+    /**
+     * @return whether the payload was applied while being downloaded
+     */
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * @return the time spent writing the payload to the other slot
+     */
+    public long getApplyMillis() {
+        return mApplyMillis;
+    }
+
+    public void setApplyMillis(long applyMillis) {
+        mApplyMillis = applyMillis;
+    }
+
+    /**
+     * @return the time spent verifying the other slot and running postinstall
+     */
+    public long getFinalizingMillis() {
+        return mFinalizingMillis;
+    }
+
+    public void setFinalizingMillis(long finalizingMillis) {
+        mFinalizingMillis = finalizingMillis;
+    }
+
+    public long getSuspendedMillis() {
+        return mSuspendedMillis;
+    }
+
+    public void setSuspendedMillis(long suspendedMillis) {
+        mSuspendedMillis = suspendedMillis;
+    }
+
+    public int getSuspendCount() {
+        return mSuspendCount;
+    }
+
+    public void setSuspendCount(int suspendCount) {
+        mSuspendCount = suspendCount;
+    }
+
+    /**
+     * @return the error code reported by update_engine, see
+     *         UpdateEngine.ErrorCodeConstants
+     */
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    public void setErrorCode(int errorCode) {
+        mErrorCode = errorCode;
+    }
+}
@@ -16,18 +16,38 @@
 package org.lineageos.updater.model;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runtime record of an update. It's changed from several threads, so the
+ * status and the progress values are packed into two words that are always
+ * read and written atomically. Use {@link #snapshot()} to get a consistent,
+ * immutable copy for the UI or the database.
+ */
 public class Update extends UpdateBase implements UpdateInfo {
 
-    private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
-    private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
-    private File mFile;
-    private int mProgress;
-    private long mEta;
-    private long mSpeed;
-    private int mInstallProgress;
-    private boolean mAvailableOnline;
-    private boolean mIsFinalizing;
+    // mState: status, persistent status, install progress and flags
+    private static final int PERSISTENT_STATUS_SHIFT = 8;
+    private static final int INSTALL_PROGRESS_SHIFT = 16;
+    private static final long FINALIZING_BIT = 1L << 24;
+    private static final long AVAILABLE_ONLINE_BIT = 1L << 25;
+    // mTransfer: progress, speed in bytes per second and ETA in seconds
+    private static final int SPEED_SHIFT = 8;
+    private static final int ETA_SHIFT = 40;
+    private static final long SPEED_MAX = 0xffffffffL;
+    private static final long ETA_MAX = 0xffffffL;
+
+    private static final long BYTE_MASK = 0xff;
+    private static final UpdateStatus[] STATUSES = UpdateStatus.values();
+
+    private final AtomicLong mState = new AtomicLong(
+            UpdateStatus.UNKNOWN.ordinal() |
+            (long) UpdateStatus.Persistent.UNKNOWN << PERSISTENT_STATUS_SHIFT);
+    private final AtomicLong mTransfer = new AtomicLong();
+    private volatile File mFile;
+    private volatile String mPackageHash;
+    private volatile long mDownloadedBytes = -1;
+    private volatile long mLastAccess;
 
     public Update() {
     }
@@ -38,33 +58,91 @@ public class Update extends UpdateBase implements UpdateInfo {
 
     public Update(UpdateInfo update) {
         super(update);
-        mStatus = update.getStatus();
-        mPersistentStatus = update.getPersistentStatus();
+        if (update instanceof Update) {
+            update = ((Update) update).snapshot();
+        }
+        setStatus(update.getStatus());
+        setPersistentStatus(update.getPersistentStatus());
         mFile = update.getFile();
-        mProgress = update.getProgress();
-        mEta = update.getEta();
-        mSpeed = update.getSpeed();
-        mInstallProgress = update.getInstallProgress();
-        mAvailableOnline = update.getAvailableOnline();
-        mIsFinalizing = update.getFinalizing();
+        mPackageHash = update.getPackageHash();
+        mDownloadedBytes = update.getDownloadedBytes();
+        mLastAccess = update.getLastAccess();
+        setDownloadProgress(update.getProgress(), update.getSpeed(), update.getEta());
+        setInstallProgress(update.getInstallProgress());
+        setAvailableOnline(update.getAvailableOnline());
+        setFinalizing(update.getFinalizing());
+    }
+
+    public UpdateSnapshot snapshot() {
+        return new UpdateSnapshot(this, mState.get(), mTransfer.get());
+    }
+
+    static UpdateStatus unpackStatus(long state) {
+        return STATUSES[(int) (state & BYTE_MASK)];
+    }
+
+    static int unpackPersistentStatus(long state) {
+        return (int) (state >>> PERSISTENT_STATUS_SHIFT & BYTE_MASK);
+    }
+
+    static int unpackInstallProgress(long state) {
+        return (int) (state >>> INSTALL_PROGRESS_SHIFT & BYTE_MASK);
+    }
+
+    static boolean unpackFinalizing(long state) {
+        return (state & FINALIZING_BIT) != 0;
+    }
+
+    static boolean unpackAvailableOnline(long state) {
+        return (state & AVAILABLE_ONLINE_BIT) != 0;
+    }
+
+    static int unpackProgress(long transfer) {
+        return (int) (transfer & BYTE_MASK);
+    }
+
+    static long unpackSpeed(long transfer) {
+        return transfer >>> SPEED_SHIFT & SPEED_MAX;
+    }
+
+    static long unpackEta(long transfer) {
+        return transfer >>> ETA_SHIFT & ETA_MAX;
+    }
+
+    private static long clamp(long value, long max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    private static long packTransfer(int progress, long speed, long eta) {
+        return clamp(progress, BYTE_MASK) |
+                clamp(speed, SPEED_MAX) << SPEED_SHIFT |
+                clamp(eta, ETA_MAX) << ETA_SHIFT;
+    }
+
+    private static void set(AtomicLong word, long mask, long bits) {
+        long previous;
+        do {
+            previous = word.get();
+        } while (!word.compareAndSet(previous, (previous & ~mask) | bits));
     }
 
     @Override
     public UpdateStatus getStatus() {
-        return mStatus;
+        return unpackStatus(mState.get());
     }
 
     public void setStatus(UpdateStatus status) {
-        mStatus = status;
+        set(mState, BYTE_MASK, status.ordinal());
     }
 
     @Override
     public int getPersistentStatus() {
-        return mPersistentStatus;
+        return unpackPersistentStatus(mState.get());
     }
 
     public void setPersistentStatus(int status) {
-        mPersistentStatus = status;
+        set(mState, BYTE_MASK << PERSISTENT_STATUS_SHIFT,
+                clamp(status, BYTE_MASK) << PERSISTENT_STATUS_SHIFT);
     }
 
     @Override
@@ -76,57 +154,93 @@ public class Update extends UpdateBase implements UpdateInfo {
         mFile = file;
     }
 
+    @Override
+    public String getPackageHash() {
+        return mPackageHash;
+    }
+
+    public void setPackageHash(String packageHash) {
+        mPackageHash = packageHash;
+    }
+
     @Override
     public int getProgress() {
-        return mProgress;
+        return unpackProgress(mTransfer.get());
     }
 
     public void setProgress(int progress) {
-        mProgress = progress;
+        set(mTransfer, BYTE_MASK, clamp(progress, BYTE_MASK));
+    }
+
+    /**
+     * Set the progress, speed and ETA of the download at once, so that readers
+     * never see a mix of old and new values.
+     */
+    public void setDownloadProgress(int progress, long speed, long eta) {
+        mTransfer.lazySet(packTransfer(progress, speed, eta));
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public void setDownloadedBytes(long downloadedBytes) {
+        mDownloadedBytes = downloadedBytes;
+    }
+
+    @Override
+    public long getLastAccess() {
+        return mLastAccess;
+    }
+
+    public void setLastAccess(long lastAccess) {
+        mLastAccess = lastAccess;
     }
 
     @Override
     public long getEta() {
-        return mEta;
+        return unpackEta(mTransfer.get());
     }
 
     public void setEta(long eta) {
-        mEta = eta;
+        set(mTransfer, ETA_MAX << ETA_SHIFT, clamp(eta, ETA_MAX) << ETA_SHIFT);
     }
 
     @Override
     public long getSpeed() {
-        return mSpeed;
+        return unpackSpeed(mTransfer.get());
     }
 
     public void setSpeed(long speed) {
-        mSpeed = speed;
+        set(mTransfer, SPEED_MAX << SPEED_SHIFT, clamp(speed, SPEED_MAX) << SPEED_SHIFT);
     }
 
     @Override
     public int getInstallProgress() {
-        return mInstallProgress;
+        return unpackInstallProgress(mState.get());
     }
 
     public void setInstallProgress(int progress) {
-        mInstallProgress = progress;
+        set(mState, BYTE_MASK << INSTALL_PROGRESS_SHIFT,
+                clamp(progress, BYTE_MASK) << INSTALL_PROGRESS_SHIFT);
     }
 
     @Override
     public boolean getAvailableOnline() {
-        return mAvailableOnline;
+        return unpackAvailableOnline(mState.get());
     }
 
     public void setAvailableOnline(boolean availableOnline) {
-        mAvailableOnline = availableOnline;
+        set(mState, AVAILABLE_ONLINE_BIT, availableOnline ? AVAILABLE_ONLINE_BIT : 0);
     }
 
     @Override
     public boolean getFinalizing() {
-        return mIsFinalizing;
+        return unpackFinalizing(mState.get());
     }
 
     public void setFinalizing(boolean finalizing) {
-        mIsFinalizing = finalizing;
+        set(mState, FINALIZING_BIT, finalizing ? FINALIZING_BIT : 0);
     }
 }
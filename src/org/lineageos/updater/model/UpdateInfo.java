@@ -24,10 +24,28 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     File getFile();
 
+    /**
+     * @return the hash of the package published by the server, which tells
+     *         whether two updates download the same data, or null if unknown
+     */
+    String getPackageHash();
+
     long getFileSize();
 
     int getProgress();
 
+    /**
+     * @return the number of bytes downloaded, or -1 if unknown. Since the file
+     *         is preallocated, its length can't be used instead.
+     */
+    long getDownloadedBytes();
+
+    /**
+     * @return when the package was last downloaded, verified or installed, as
+     *         milliseconds since the epoch, or 0 if never
+     */
+    long getLastAccess();
+
     long getEta();
 
     long getSpeed();
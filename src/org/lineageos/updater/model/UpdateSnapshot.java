@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.model;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Immutable copy of an update, safe to read from any thread. The status and
+ * the progress values are each read atomically from the update.
+ */
+public final class UpdateSnapshot implements UpdateInfo {
+
+    private final String mName;
+    private final String mDownloadUrl;
+    private final String mDownloadId;
+    private final long mTimestamp;
+    private final String mType;
+    private final String mVersion;
+    private final long mFileSize;
+    private final List<IncrementalPackage> mIncrementals;
+
+    private final File mFile;
+    private final String mPackageHash;
+    private final long mDownloadedBytes;
+    private final long mLastAccess;
+    private final long mState;
+    private final long mTransfer;
+
+    UpdateSnapshot(Update update, long state, long transfer) {
+        mName = update.getName();
+        mDownloadUrl = update.getDownloadUrl();
+        mDownloadId = update.getDownloadId();
+        mTimestamp = update.getTimestamp();
+        mType = update.getType();
+        mVersion = update.getVersion();
+        mFileSize = update.getFileSize();
+        mIncrementals = update.getIncrementals();
+        mFile = update.getFile();
+        mPackageHash = update.getPackageHash();
+        mDownloadedBytes = update.getDownloadedBytes();
+        mLastAccess = update.getLastAccess();
+        mState = state;
+        mTransfer = transfer;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String getType() {
+        return mType;
+    }
+
+    @Override
+    public String getVersion() {
+        return mVersion;
+    }
+
+    @Override
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    @Override
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    @Override
+    public List<IncrementalPackage> getIncrementals() {
+        return mIncrementals;
+    }
+
+    @Override
+    public UpdateStatus getStatus() {
+        return Update.unpackStatus(mState);
+    }
+
+    @Override
+    public int getPersistentStatus() {
+        return Update.unpackPersistentStatus(mState);
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public String getPackageHash() {
+        return mPackageHash;
+    }
+
+    @Override
+    public int getProgress() {
+        return Update.unpackProgress(mTransfer);
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    @Override
+    public long getLastAccess() {
+        return mLastAccess;
+    }
+
+    @Override
+    public long getEta() {
+        return Update.unpackEta(mTransfer);
+    }
+
+    @Override
+    public long getSpeed() {
+        return Update.unpackSpeed(mTransfer);
+    }
+
+    @Override
+    public int getInstallProgress() {
+        return Update.unpackInstallProgress(mState);
+    }
+
+    @Override
+    public boolean getAvailableOnline() {
+        return Update.unpackAvailableOnline(mState);
+    }
+
+    @Override
+    public boolean getFinalizing() {
+        return Update.unpackFinalizing(mState);
+    }
+}
@@ -22,6 +22,7 @@ public enum UpdateStatus {
     DOWNLOADED,
     PAUSED,
     PAUSED_ERROR,
+    INSUFFICIENT_SPACE,
     DELETED,
     VERIFYING,
     VERIFIED,
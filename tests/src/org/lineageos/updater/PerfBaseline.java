@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Measures operations and compares them with the baselines stored in
+ * perf_baselines.properties, see the README. The baselines depend on the
+ * machine, so the measurements only run with -Dupdater.perf.check=true.
+ */
+public final class PerfBaseline {
+
+    private static final String BASELINES = "/perf_baselines.properties";
+
+    private static final String PROP_CHECK = "updater.perf.check";
+    private static final String PROP_TOLERANCE = "updater.perf.tolerance";
+    private static final String PROP_RECORD = "updater.perf.record";
+
+    private static final double DEFAULT_TOLERANCE = 2.0;
+    // Short operations are noisy, always allow this much on top of the baseline
+    private static final double MIN_SLACK_MS = 20;
+
+    // Warm up for at least this many runs and this long, so that short
+    // operations are measured once compiled like the longer ones
+    private static final int WARMUP_RUNS = 2;
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final int RUNS = 5;
+
+    private static Properties sBaselines;
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    private PerfBaseline() {
+    }
+
+    /**
+     * Run the operation a few times and fail if the median duration exceeds
+     * the baseline. Setup runs before each operation and isn't measured.
+     * The calling test is skipped unless the measurements are enabled.
+     *
+     * @return the median duration in milliseconds
+     */
+    public static double check(String name, Operation setup, Operation operation)
+            throws Exception {
+        assumeTrue("Run with -D" + PROP_CHECK + "=true to measure " + name,
+                Boolean.getBoolean(PROP_CHECK) || Boolean.getBoolean(PROP_RECORD));
+
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        for (int i = 0; i < WARMUP_RUNS || System.nanoTime() < warmupEnd; i++) {
+            if (setup != null) {
+                setup.run();
+            }
+            operation.run();
+        }
+
+        double[] durations = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            if (setup != null) {
+                setup.run();
+            }
+            long start = System.nanoTime();
+            operation.run();
+            durations[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(durations);
+        double median = durations[RUNS / 2];
+
+        if (Boolean.getBoolean(PROP_RECORD)) {
+            System.out.println(String.format(Locale.ROOT, "%s=%.1f", name, median));
+            return median;
+        }
+
+        String baseline = getBaselines().getProperty(name);
+        assertNotNull("No baseline for " + name + ", record it with -D" + PROP_RECORD +
+                "=true", baseline);
+        double baselineMs = Double.parseDouble(baseline);
+        double tolerance = Double.parseDouble(
+                System.getProperty(PROP_TOLERANCE, String.valueOf(DEFAULT_TOLERANCE)));
+        double limit = Math.max(baselineMs * tolerance, baselineMs + MIN_SLACK_MS);
+        assertTrue(String.format(Locale.ROOT, "%s took %.1f ms, baseline %.1f ms, limit %.1f ms",
+                name, median, baselineMs, limit), median <= limit);
+        return median;
+    }
+
+    public static double check(String name, Operation operation) throws Exception {
+        return check(name, null, operation);
+    }
+
+    private static synchronized Properties getBaselines() throws IOException {
+        if (sBaselines == null) {
+            Properties baselines = new Properties();
+            try (InputStream in = PerfBaseline.class.getResourceAsStream(BASELINES)) {
+                assertNotNull("Missing " + BASELINES, in);
+                baselines.load(in);
+            }
+            sBaselines = baselines;
+        }
+        return sBaselines;
+    }
+}
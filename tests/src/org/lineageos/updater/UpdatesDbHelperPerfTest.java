@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.lineageos.updater.misc.SyntheticManifests;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class UpdatesDbHelperPerfTest {
+
+    private static final int COUNT = 1_000;
+
+    private Context mContext;
+    private UpdatesDbHelper mDbHelper;
+    private final List<Update> mUpdates = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        for (UpdateInfo info : SyntheticManifests.createUpdates(COUNT)) {
+            Update update = (Update) info;
+            update.setFile(new File(mContext.getFilesDir(), update.getName()));
+            update.setStatus(UpdateStatus.DOWNLOADED);
+            update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+            update.setDownloadedBytes(update.getFileSize());
+            mUpdates.add(update);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        closeDatabase();
+    }
+
+    @Test
+    public void addUpdates() throws Exception {
+        PerfBaseline.check("db_add_1k", this::openEmptyDatabase, () -> {
+            for (Update update : mUpdates) {
+                assertNotEquals(-1, mDbHelper.addUpdate(update));
+            }
+        });
+        assertEquals(COUNT, mDbHelper.getUpdates().size());
+    }
+
+    @Test
+    public void replaceUpdates() throws Exception {
+        PerfBaseline.check("db_replace_1k", () -> {
+            openEmptyDatabase();
+            for (Update update : mUpdates) {
+                mDbHelper.addUpdate(update);
+            }
+        }, () -> {
+            for (Update update : mUpdates) {
+                assertNotEquals(-1, mDbHelper.addUpdateWithOnConflict(update,
+                        SQLiteDatabase.CONFLICT_REPLACE));
+            }
+        });
+        assertEquals(COUNT, mDbHelper.getUpdates().size());
+    }
+
+    @Test
+    public void getUpdates() throws Exception {
+        openEmptyDatabase();
+        for (Update update : mUpdates) {
+            mDbHelper.addUpdate(update);
+        }
+        PerfBaseline.check("db_get_1k", () -> assertEquals(COUNT,
+                mDbHelper.getUpdates().size()));
+        Update update = mDbHelper.getUpdate(SyntheticManifests.downloadId(COUNT - 1));
+        assertEquals(mUpdates.get(COUNT - 1).getFileSize(), update.getFileSize());
+        assertEquals(mUpdates.get(COUNT - 1).getFile(), update.getFile());
+    }
+
+    private void openEmptyDatabase() {
+        closeDatabase();
+        mContext.deleteDatabase(UpdatesDbHelper.DATABASE_NAME);
+        mDbHelper = new UpdatesDbHelper(mContext);
+    }
+
+    private void closeDatabase() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+            mDbHelper = null;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.lineageos.updater.controller.DownloadNetworkScheduler.Decision;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+import org.lineageos.updater.model.UpdateStatus;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadNetworkSchedulerTest {
+
+    private static final String ID = "update";
+
+    private static final NetworkState WIFI = new NetworkState(1, true, false, false);
+    private static final NetworkState OTHER_WIFI = new NetworkState(2, true, false, false);
+    private static final NetworkState MOBILE = new NetworkState(3, true, true, false);
+    private static final NetworkState OTHER_MOBILE = new NetworkState(4, true, true, false);
+    private static final NetworkState ROAMING = new NetworkState(5, true, true, true);
+
+    private SharedPreferences mPreferences;
+    private FakeNetworkSource mNetworkSource;
+    private FakeDownloads mDownloads;
+    private DownloadNetworkScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        mPreferences = context.getSharedPreferences("test", Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+        mNetworkSource = new FakeNetworkSource(WIFI);
+        mDownloads = new FakeDownloads();
+        mScheduler = new DownloadNetworkScheduler(mDownloads, mNetworkSource, mPreferences);
+        mDownloads.mScheduler = mScheduler;
+    }
+
+    @Test
+    public void decideWithoutNetwork() {
+        assertEquals(Decision.PAUSE, DownloadNetworkScheduler.decide(null, true, false));
+        assertEquals(Decision.PAUSE, DownloadNetworkScheduler.decide(
+                NetworkState.DISCONNECTED, false, true));
+    }
+
+    @Test
+    public void decideRoaming() {
+        assertEquals(Decision.PAUSE, DownloadNetworkScheduler.decide(ROAMING, false, true));
+    }
+
+    @Test
+    public void decideMetered() {
+        assertEquals(Decision.PAUSE, DownloadNetworkScheduler.decide(MOBILE, true, false));
+        assertEquals(Decision.RUN, DownloadNetworkScheduler.decide(MOBILE, true, true));
+        assertEquals(Decision.RUN, DownloadNetworkScheduler.decide(MOBILE, false, false));
+    }
+
+    @Test
+    public void decideUnmetered() {
+        assertEquals(Decision.RUN, DownloadNetworkScheduler.decide(WIFI, true, false));
+    }
+
+    @Test
+    public void pauseWhenDisconnectedAndResumeWhenConnected() {
+        startDownload(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(NetworkState.DISCONNECTED);
+        assertEquals(UpdateStatus.PAUSED, mDownloads.getUpdate(ID).getStatus());
+        assertTrue(mScheduler.hasPausedDownloads());
+
+        mNetworkSource.setState(WIFI);
+        assertTrue(mDownloads.isDownloading(ID));
+        assertFalse(mScheduler.hasPausedDownloads());
+        assertEquals(1, mDownloads.mResumed);
+    }
+
+    @Test
+    public void pauseWhenRoaming() {
+        startDownload(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(ROAMING);
+        assertEquals(UpdateStatus.PAUSED, mDownloads.getUpdate(ID).getStatus());
+    }
+
+    @Test
+    public void pauseOnMeteredNetworkWhenWarning() {
+        startDownload(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(MOBILE);
+        assertEquals(UpdateStatus.PAUSED, mDownloads.getUpdate(ID).getStatus());
+        // Not moved, the download waits for an unmetered network
+        idleMainLooper();
+        assertFalse(mDownloads.isDownloading(ID));
+
+        mNetworkSource.setState(WIFI);
+        assertTrue(mDownloads.isDownloading(ID));
+    }
+
+    @Test
+    public void continueOnMeteredNetworkWithoutWarning() {
+        mPreferences.edit().putBoolean(Constants.PREF_MOBILE_DATA_WARNING, false).commit();
+        mNetworkSource = new FakeNetworkSource(MOBILE);
+        mScheduler = new DownloadNetworkScheduler(mDownloads, mNetworkSource, mPreferences);
+        mDownloads.mScheduler = mScheduler;
+        startDownload(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(OTHER_MOBILE);
+        idleMainLooper();
+        assertTrue(mDownloads.isDownloading(ID));
+        assertFalse(mScheduler.hasPausedDownloads());
+    }
+
+    @Test
+    public void continueOnMeteredNetworkAllowedByUser() {
+        mNetworkSource = new FakeNetworkSource(MOBILE);
+        mScheduler = new DownloadNetworkScheduler(mDownloads, mNetworkSource, mPreferences);
+        mDownloads.mScheduler = mScheduler;
+        mScheduler.start();
+        // Started by the user while on the metered network
+        startDownload(ID);
+
+        mNetworkSource.setState(OTHER_MOBILE);
+        idleMainLooper();
+        assertTrue(mDownloads.isDownloading(ID));
+    }
+
+    @Test
+    public void moveToNewNetwork() {
+        startDownload(ID);
+        mScheduler.start();
+
+        // Reconnected rather than paused, which would abort a pipelined installation
+        mNetworkSource.setState(OTHER_WIFI);
+        assertEquals(1, mDownloads.mReconnected);
+        assertEquals(0, mDownloads.mPaused);
+        assertTrue(mDownloads.isDownloading(ID));
+        assertEquals(UpdateStatus.DOWNLOADING, mDownloads.getUpdate(ID).getStatus());
+        assertFalse(mScheduler.hasPausedDownloads());
+
+        mNetworkSource.setState(WIFI);
+        assertEquals(2, mDownloads.mReconnected);
+        assertEquals(0, mDownloads.mPaused);
+        assertEquals(0, mDownloads.mResumed);
+    }
+
+    @Test
+    public void moveToUnsuitableNetwork() {
+        startDownload(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(OTHER_WIFI);
+        mNetworkSource.setState(NetworkState.DISCONNECTED);
+        assertEquals(1, mDownloads.mReconnected);
+        assertEquals(1, mDownloads.mPaused);
+        assertFalse(mDownloads.isDownloading(ID));
+        assertTrue(mScheduler.hasPausedDownloads());
+
+        // Resumed, there's nothing to reconnect
+        mNetworkSource.setState(WIFI);
+        assertTrue(mDownloads.isDownloading(ID));
+        assertEquals(1, mDownloads.mResumed);
+        assertEquals(1, mDownloads.mReconnected);
+    }
+
+    @Test
+    public void keepDownloadsPausedByUser() {
+        startDownload(ID);
+        mScheduler.start();
+        mDownloads.pauseDownload(ID);
+
+        mNetworkSource.setState(NetworkState.DISCONNECTED);
+        mNetworkSource.setState(WIFI);
+        idleMainLooper();
+        assertFalse(mDownloads.isDownloading(ID));
+        assertEquals(0, mDownloads.mResumed);
+    }
+
+    @Test
+    public void ignorePrefetches() {
+        startDownload(ID);
+        mDownloads.mPrefetching.add(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(NetworkState.DISCONNECTED);
+        assertTrue(mDownloads.isDownloading(ID));
+        assertFalse(mScheduler.hasPausedDownloads());
+    }
+
+    @Test
+    public void forgetDeletedDownloads() {
+        startDownload(ID);
+        mScheduler.start();
+
+        mNetworkSource.setState(NetworkState.DISCONNECTED);
+        Update update = mDownloads.mUpdates.get(ID);
+        update.setStatus(UpdateStatus.DELETED);
+        mScheduler.onUpdateStatusChanged(update);
+        assertFalse(mScheduler.hasPausedDownloads());
+
+        mNetworkSource.setState(WIFI);
+        assertEquals(0, mDownloads.mResumed);
+    }
+
+    @Test
+    public void stop() {
+        startDownload(ID);
+        mScheduler.start();
+
+        mScheduler.stop();
+        assertFalse(mNetworkSource.isRegistered());
+        mNetworkSource.setState(NetworkState.DISCONNECTED);
+        assertTrue(mDownloads.isDownloading(ID));
+        assertEquals(0, mDownloads.mPaused);
+    }
+
+    private void startDownload(String downloadId) {
+        Update update = new Update();
+        update.setDownloadId(downloadId);
+        mDownloads.mUpdates.put(downloadId, update);
+        mDownloads.mDownloading.add(downloadId);
+        mDownloads.setStatus(downloadId, UpdateStatus.STARTING);
+        mDownloads.setStatus(downloadId, UpdateStatus.DOWNLOADING);
+    }
+
+    private static void idleMainLooper() {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMinutes(1));
+    }
+
+    private static class FakeNetworkSource implements NetworkSource {
+        private NetworkState mState;
+        private Listener mListener;
+
+        FakeNetworkSource(NetworkState state) {
+            mState = state;
+        }
+
+        @Override
+        public void register(Listener listener) {
+            mListener = listener;
+            listener.onNetworkChanged(mState);
+        }
+
+        @Override
+        public void unregister() {
+            mListener = null;
+        }
+
+        boolean isRegistered() {
+            return mListener != null;
+        }
+
+        void setState(NetworkState state) {
+            mState = state;
+            if (mListener != null) {
+                mListener.onNetworkChanged(state);
+            }
+        }
+    }
+
+    /**
+     * Updates whose status changes right away, reported to the scheduler like
+     * UpdaterService does
+     */
+    private static class FakeDownloads implements DownloadNetworkScheduler.Downloads {
+        private final Map<String, Update> mUpdates = new LinkedHashMap<>();
+        private final Set<String> mDownloading = new HashSet<>();
+        private final Set<String> mPrefetching = new HashSet<>();
+        private DownloadNetworkScheduler mScheduler;
+        private int mPaused;
+        private int mResumed;
+        private int mReconnected;
+
+        @Override
+        public List<UpdateInfo> getUpdates() {
+            return new ArrayList<>(mUpdates.values());
+        }
+
+        @Override
+        public UpdateInfo getUpdate(String downloadId) {
+            return mUpdates.get(downloadId);
+        }
+
+        @Override
+        public boolean isDownloading(String downloadId) {
+            return mDownloading.contains(downloadId);
+        }
+
+        @Override
+        public boolean isPrefetching(String downloadId) {
+            return mPrefetching.contains(downloadId);
+        }
+
+        @Override
+        public boolean pauseDownload(String downloadId) {
+            if (!mDownloading.remove(downloadId)) {
+                return false;
+            }
+            mPaused++;
+            setStatus(downloadId, UpdateStatus.PAUSED);
+            return true;
+        }
+
+        @Override
+        public boolean resumeDownload(String downloadId) {
+            if (!mDownloading.add(downloadId)) {
+                return false;
+            }
+            mResumed++;
+            setStatus(downloadId, UpdateStatus.STARTING);
+            setStatus(downloadId, UpdateStatus.DOWNLOADING);
+            return true;
+        }
+
+        @Override
+        public boolean reconnectDownload(String downloadId) {
+            if (!mDownloading.contains(downloadId)) {
+                return false;
+            }
+            mReconnected++;
+            return true;
+        }
+
+        private void setStatus(String downloadId, UpdateStatus status) {
+            Update update = mUpdates.get(downloadId);
+            update.setStatus(status);
+            mScheduler.onUpdateStatusChanged(update);
+        }
+    }
+}
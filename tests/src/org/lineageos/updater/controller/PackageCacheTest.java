@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateStatus;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class PackageCacheTest {
+
+    private static final long NOW = TimeUnit.DAYS.toMillis(365);
+    private static final long NEW_BUILD = Long.MAX_VALUE;
+    private static final long OLD_BUILD = 0;
+
+    @Test
+    public void evictionOrder() {
+        Update recentDownload = createUpdate("recent-download", NEW_BUILD,
+                UpdateStatus.Persistent.INCOMPLETE, NOW - 1000);
+        Update oldVerified = createUpdate("old-verified", NEW_BUILD,
+                UpdateStatus.Persistent.VERIFIED, NOW - TimeUnit.DAYS.toMillis(90));
+        Update verified = createUpdate("verified", NEW_BUILD,
+                UpdateStatus.Persistent.VERIFIED, NOW - TimeUnit.DAYS.toMillis(1));
+        Update staleDownload = createUpdate("stale-download", NEW_BUILD,
+                UpdateStatus.Persistent.INCOMPLETE, NOW - PackageCache.RECENT_DOWNLOAD_MS);
+        Update installed = createUpdate("installed", OLD_BUILD,
+                UpdateStatus.Persistent.VERIFIED, NOW);
+
+        List<Update> updates = new ArrayList<>(Arrays.asList(
+                recentDownload, oldVerified, verified, staleDownload, installed));
+        updates.sort(PackageCache.getEvictionOrder(NOW));
+        assertEquals(Arrays.asList(installed, staleDownload, oldVerified, verified,
+                recentDownload), updates);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedDownloadFirst() {
+        Update download = createUpdate("download", NEW_BUILD,
+                UpdateStatus.Persistent.INCOMPLETE, NOW - 2000);
+        Update newerDownload = createUpdate("newer-download", NEW_BUILD,
+                UpdateStatus.Persistent.INCOMPLETE, NOW - 1000);
+
+        List<Update> updates = new ArrayList<>(Arrays.asList(newerDownload, download));
+        updates.sort(PackageCache.getEvictionOrder(NOW));
+        assertEquals(Arrays.asList(download, newerDownload), updates);
+    }
+
+    private static Update createUpdate(String downloadId, long timestamp, int status,
+            long lastAccess) {
+        Update update = new Update();
+        update.setDownloadId(downloadId);
+        update.setTimestamp(timestamp);
+        update.setPersistentStatus(status);
+        update.setLastAccess(lastAccess);
+        return update;
+    }
+}
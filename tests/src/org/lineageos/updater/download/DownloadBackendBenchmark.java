@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the download backends with different buffer sizes, downloading
+ * from a server on the loopback interface. For each combination, prints the
+ * throughput and the CPU time and the memory allocated by the download thread
+ * per MB. Only runs with -Dupdater.perf.benchmark=true, see the README.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadBackendBenchmark {
+
+    private static final String PROP_BENCHMARK = "updater.perf.benchmark";
+
+    private static final int SIZE = 64 * 1024 * 1024;
+    private static final double MB = 1024 * 1024;
+    private static final int[] BUFFER_SIZES = { 8192, 16384, 65536, 262144, 1048576 };
+    private static final int WARMUP_RUNS = 1;
+    private static final int RUNS = 5;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final String[] BACKEND_NAMES = { "HttpURLConnection", "SocketChannel" };
+    private static final DownloadClient.Backend[] BACKENDS = {
+            HttpURLConnectionClient::new,
+            SocketChannelClient::new,
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LoopbackHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(Boolean.getBoolean(PROP_BENCHMARK));
+        mServer = new LoopbackHttpServer(SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void compareBackends() throws Exception {
+        System.out.println(String.format(Locale.ROOT, "%-20s %8s %8s %10s %12s",
+                "backend", "buffer", "MB/s", "CPU ms/MB", "alloc KB/MB"));
+        for (int n = 0; n < BACKENDS.length; n++) {
+            for (int bufferSize : BUFFER_SIZES) {
+                Result[] results = new Result[RUNS];
+                for (int i = -WARMUP_RUNS; i < RUNS; i++) {
+                    Result result = download(BACKENDS[n], bufferSize);
+                    if (i >= 0) {
+                        results[i] = result;
+                    }
+                }
+                Arrays.sort(results, (a, b) -> Long.compare(a.mNanos, b.mNanos));
+                Result median = results[RUNS / 2];
+                System.out.println(String.format(Locale.ROOT, "%-20s %8d %8.0f %10.2f %12.1f",
+                        BACKEND_NAMES[n], bufferSize,
+                        SIZE / MB / (median.mNanos / 1e9),
+                        median.mCpuNanos / 1e6 / (SIZE / MB),
+                        median.mAllocatedBytes / 1024.0 / (SIZE / MB)));
+            }
+        }
+    }
+
+    private Result download(DownloadClient.Backend backend, int bufferSize) throws Exception {
+        File destination = new File(mFolder.getRoot(), "update.zip");
+        CountDownLatch done = new CountDownLatch(1);
+        Result result = new Result();
+        DownloadClient client = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setDestination(destination)
+                .setBackend(backend)
+                .setBufferSize(bufferSize)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                            DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                        // Each download has its own thread, this covers all of it
+                        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                        result.mCpuNanos = threads.getCurrentThreadCpuTime();
+                        if (threads instanceof com.sun.management.ThreadMXBean) {
+                            result.mAllocatedBytes = ((com.sun.management.ThreadMXBean) threads)
+                                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+                        }
+                        result.mSuccess = true;
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                })
+                .build();
+        long start = System.nanoTime();
+        client.start();
+        assertTrue("Download timed out", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        result.mNanos = System.nanoTime() - start;
+        assertTrue("Download failed", result.mSuccess);
+        return result;
+    }
+
+    private static class Result {
+        private boolean mSuccess;
+        private long mNanos;
+        private long mCpuNanos;
+        private long mAllocatedBytes = -1;
+    }
+}
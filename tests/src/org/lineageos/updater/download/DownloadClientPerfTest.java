@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.lineageos.updater.PerfBaseline;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadClientPerfTest {
+
+    private static final int SIZE = 64 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LoopbackHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackHttpServer(SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void download() throws Exception {
+        File destination = new File(mFolder.getRoot(), "update.zip");
+        DownloadClient.Builder builder = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl());
+        PerfBaseline.check("download_64m", () ->
+                assertTrue(DownloadClientTest.download(builder, destination, false)));
+        DownloadClientTest.assertContent(destination, SIZE);
+    }
+
+    @Test
+    public void downloadSocketChannel() throws Exception {
+        File destination = new File(mFolder.getRoot(), "update.zip");
+        DownloadClient.Builder builder = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setBackend(SocketChannelClient::new);
+        PerfBaseline.check("download_socket_channel_64m", () ->
+                assertTrue(DownloadClientTest.download(builder, destination, false)));
+        DownloadClientTest.assertContent(destination, SIZE);
+    }
+
+    @Test
+    public void resume() throws Exception {
+        File destination = new File(mFolder.getRoot(), "update.zip");
+        try (OutputStream out = new FileOutputStream(destination)) {
+            LoopbackHttpServer.writeContent(out, 0, SIZE / 2);
+        }
+        DownloadClient.Builder builder = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl());
+        assertTrue(DownloadClientTest.download(builder, destination, true));
+        DownloadClientTest.assertContent(destination, SIZE);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadClientTest {
+
+    private static final int SIZE = 4 * 1024 * 1024;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final DownloadClient.Backend[] BACKENDS = {
+            HttpURLConnectionClient::new,
+            SocketChannelClient::new,
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LoopbackHttpServer mServer;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackHttpServer(SIZE);
+        mDestination = new File(mFolder.getRoot(), "update.zip");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void download() throws Exception {
+        for (DownloadClient.Backend backend : BACKENDS) {
+            assertTrue(download(newBuilder(backend), mDestination, false));
+            assertContent(mDestination, SIZE);
+        }
+    }
+
+    @Test
+    public void resume() throws Exception {
+        for (DownloadClient.Backend backend : BACKENDS) {
+            try (OutputStream out = new FileOutputStream(mDestination)) {
+                LoopbackHttpServer.writeContent(out, 0, SIZE / 3);
+            }
+            assertTrue(download(newBuilder(backend), mDestination, true));
+            assertContent(mDestination, SIZE);
+        }
+    }
+
+    @Test
+    public void retryStalledDownload() throws Exception {
+        for (DownloadClient.Backend backend : BACKENDS) {
+            int requests = mServer.getRequestCount();
+            mServer.stallNextResponse(SIZE / 2);
+            assertTrue(download(newBuilder(backend).setReadTimeout(500), mDestination, false));
+            assertContent(mDestination, SIZE);
+            // The second request continued from where the first one stalled
+            assertEquals(requests + 2, mServer.getRequestCount());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void socketChannelOnlySupportsHttp() throws Exception {
+        download(newBuilder(SocketChannelClient::new).setUrl("https://localhost/update.zip"),
+                mDestination, false);
+    }
+
+    private DownloadClient.Builder newBuilder(DownloadClient.Backend backend) {
+        return new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setBackend(backend);
+    }
+
+    /**
+     * Run the download to completion
+     *
+     * @return whether it succeeded
+     */
+    static boolean download(DownloadClient.Builder builder, File destination, boolean resume)
+            throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean success = new AtomicBoolean();
+        DownloadClient client = builder
+                .setDestination(destination)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                            DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                        success.set(true);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                })
+                .build();
+        if (resume) {
+            client.resume();
+        } else {
+            client.start();
+        }
+        assertTrue("Download timed out", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return success.get();
+    }
+
+    static void assertContent(File file, long size) throws IOException {
+        assertEquals(size, file.length());
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            for (long offset = 0; offset < size; offset++) {
+                if ((byte) in.read() != LoopbackHttpServer.byteAt(offset)) {
+                    throw new AssertionError("Unexpected content at " + offset);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP server on the loopback interface serving a generated file of the given
+ * size. Range requests are supported, and the first response can be made to
+ * stall to test the timeouts of the clients.
+ */
+final class LoopbackHttpServer implements Closeable {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+    // The file repeats this pattern, generating it doesn't cost the server anything
+    private static final byte[] PATTERN = new byte[64 * 1024];
+
+    static {
+        new Random(0).nextBytes(PATTERN);
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final long mSize;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mStallAfter = new AtomicLong(-1);
+
+    LoopbackHttpServer(long size) throws IOException {
+        mSize = size;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    String getUrl() {
+        return "http://" + mServer.getAddress().getHostString() + ":" +
+                mServer.getAddress().getPort() + "/update.zip";
+    }
+
+    /**
+     * Stop sending the next response after the given number of bytes of the
+     * body, without closing the connection
+     */
+    void stallNextResponse(long bytes) {
+        mStallAfter.set(bytes);
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the byte of the file at the given offset
+     */
+    static byte byteAt(long offset) {
+        return PATTERN[(int) (offset % PATTERN.length)];
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+        long stallAfter = mStallAfter.getAndSet(-1);
+        long start = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (matcher.matches()) {
+                start = Long.parseLong(matcher.group(1));
+            }
+        }
+        if (start > 0) {
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + (mSize - 1) + "/" + mSize);
+            exchange.sendResponseHeaders(206, mSize - start);
+        } else {
+            exchange.sendResponseHeaders(200, mSize);
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (stallAfter >= 0 && start + stallAfter < mSize) {
+                writeContent(out, start, start + stallAfter);
+                out.flush();
+                // Until the server is closed
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            writeContent(out, start, mSize);
+        }
+    }
+
+    /**
+     * Write the part of the file between start, inclusive, and end, exclusive
+     */
+    static void writeContent(OutputStream out, long start, long end) throws IOException {
+        long offset = start;
+        while (offset < end) {
+            int position = (int) (offset % PATTERN.length);
+            int count = (int) Math.min(PATTERN.length - position, end - offset);
+            out.write(PATTERN, position, count);
+            offset += count;
+        }
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+}
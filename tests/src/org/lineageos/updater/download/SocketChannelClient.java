@@ -0,0 +1,547 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Minimal HTTP/1.1 client built on a non-blocking SocketChannel. The response
+ * body is copied from a direct buffer to the destination file channel, without
+ * intermediate heap buffers. Only plain http is supported and duplicate links
+ * are ignored, so it's only used to compare with HttpURLConnectionClient in the
+ * tests and the benchmarks.
+ */
+class SocketChannelClient implements DownloadClient {
+
+    private final static String TAG = "SocketChannelClient";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    // Transfers slower than this for STALL_WINDOW_MS are considered stalled
+    private static final long STALL_MIN_BYTES_PER_SECOND = 1024;
+    private static final int STALL_WINDOW_MS = 30000;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_BASE_DELAY_MS = 2000;
+    private static final long RETRY_MAX_DELAY_MS = 60000;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final URL mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final int mBufferSize;
+    private final int mReadTimeout;
+    private final SpeedEstimator.Model mSpeedModel;
+    private final Map<String, String> mRequestHeaders;
+    private final long mResumeOffset;
+    private final boolean mPreallocate;
+    private final long mExpectedSize;
+    private final long mMaxSpeed;
+
+    private final Map<String, List<String>> mHeaderFields =
+            new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private DownloadThread mDownloadThread;
+
+    public class Headers implements DownloadClient.Headers {
+        @Override
+        public String get(String name) {
+            List<String> values = mHeaderFields.get(name);
+            return values != null && !values.isEmpty() ? values.get(values.size() - 1) : null;
+        }
+
+        @Override
+        public Map<String, List<String>> getAll() {
+            return Collections.unmodifiableMap(mHeaderFields);
+        }
+    }
+
+    SocketChannelClient(DownloadClient.Builder builder) throws IOException {
+        mUrl = new URL(builder.mUrl);
+        if (!"http".equals(mUrl.getProtocol())) {
+            throw new IOException("Unsupported protocol " + mUrl.getProtocol());
+        }
+        mResumeOffset = builder.mResumeOffset;
+        mPreallocate = builder.mPreallocate;
+        mExpectedSize = builder.mExpectedSize;
+        mMaxSpeed = builder.mMaxSpeed;
+        mRequestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mRequestHeaders.putAll(builder.mRequestHeaders);
+        mDestination = builder.mDestination;
+        mProgressListener = builder.mProgressListener;
+        mCallback = builder.mCallback;
+        mBufferSize = builder.mBufferSize;
+        mReadTimeout = builder.mReadTimeout;
+        mSpeedModel = builder.mSpeedModel;
+    }
+
+    @Override
+    public void start() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        downloadFileInternalCommon(false);
+    }
+
+    @Override
+    public void resume() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        downloadFileInternalCommon(true);
+    }
+
+    @Override
+    public void cancel() {
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        // Interrupting the thread wakes it up if it's waiting for the channel
+        mDownloadThread.interrupt();
+        mDownloadThread = null;
+    }
+
+    private void downloadFileInternalCommon(boolean resume) {
+        mDownloadThread = new DownloadThread(resume);
+        mDownloadThread.start();
+    }
+
+    private static boolean isSuccessCode(int statusCode) {
+        return (statusCode / 100) == 2;
+    }
+
+    private static boolean isRedirectCode(int statusCode) {
+        return (statusCode / 100) == 3;
+    }
+
+    private static boolean isPartialContentCode(int statusCode) {
+        return statusCode == 206;
+    }
+
+    private class DownloadThread extends Thread {
+
+        private long mTotalBytes = 0;
+        private long mTotalBytesRead = 0;
+
+        private final SpeedEstimator mSpeedEstimator = SpeedEstimator.create(mSpeedModel);
+        private final Throttle mThrottle = mMaxSpeed > 0 ? new Throttle(mMaxSpeed) : null;
+        private long mSpeed = -1;
+        private long mEta = -1;
+
+        private boolean mResume;
+
+        private long mStallCheckMillis;
+        private long mStallCheckBytes;
+        private final Random mRandom = new Random();
+
+        private Selector mSelector;
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private ByteBuffer mBuffer;
+
+        private DownloadThread(boolean resume) {
+            mResume = resume;
+            // Only what precedes this offset is kept in the destination
+            mTotalBytesRead = !resume ? 0 :
+                    mResumeOffset >= 0 ? mResumeOffset : mDestination.length();
+        }
+
+        private void calculateSpeed() {
+            mSpeedEstimator.addSample(mTotalBytesRead, SystemClock.elapsedRealtime());
+            mSpeed = mSpeedEstimator.getSpeed();
+        }
+
+        private void calculateEta() {
+            long eta = SpeedEstimator.getEta(mSpeedEstimator, mTotalBytes - mTotalBytesRead);
+            if (eta >= 0) {
+                mEta = eta;
+            }
+        }
+
+        private void checkStall() throws IOException {
+            final long millis = SystemClock.elapsedRealtime();
+            final long delta = millis - mStallCheckMillis;
+            if (delta < STALL_WINDOW_MS) {
+                return;
+            }
+            if ((mTotalBytesRead - mStallCheckBytes) * 1000 / delta < STALL_MIN_BYTES_PER_SECOND) {
+                throw new IOException("Download stalled");
+            }
+            mStallCheckMillis = millis;
+            mStallCheckBytes = mTotalBytesRead;
+        }
+
+        // Exponential backoff with jitter, between half and the full delay
+        private long getRetryDelay(int retry) {
+            long delay = Math.min(RETRY_BASE_DELAY_MS << retry, RETRY_MAX_DELAY_MS);
+            return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        }
+
+        private void closeChannel() {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close channel", e);
+                }
+                mChannel = null;
+                mKey = null;
+            }
+        }
+
+        private void closeSelector() {
+            if (mSelector != null) {
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close selector", e);
+                }
+                mSelector = null;
+            }
+        }
+
+        /**
+         * Wait until the channel is ready for the given operations
+         *
+         * @throws SocketTimeoutException if it isn't ready within the read timeout
+         */
+        private void await(int ops) throws IOException {
+            mKey.interestOps(ops);
+            mSelector.selectedKeys().clear();
+            if (mSelector.select(mReadTimeout) == 0) {
+                if (isInterrupted()) {
+                    throw new InterruptedIOException("Download cancelled");
+                }
+                throw new SocketTimeoutException("Nothing received for " + mReadTimeout + " ms");
+            }
+        }
+
+        private int sendRequest(URL url, long offset) throws IOException {
+            closeChannel();
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            if (mSelector == null) {
+                mSelector = Selector.open();
+            }
+            mChannel = SocketChannel.open();
+            mChannel.socket().connect(new InetSocketAddress(url.getHost(), port),
+                    CONNECT_TIMEOUT_MS);
+            mChannel.configureBlocking(false);
+            mKey = mChannel.register(mSelector, 0);
+
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            StringBuilder request = new StringBuilder();
+            request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1) {
+                request.append(':').append(url.getPort());
+            }
+            request.append("\r\n");
+            if (!mRequestHeaders.containsKey("Accept-Encoding")) {
+                request.append("Accept-Encoding: identity\r\n");
+            }
+            for (Map.Entry<String, String> header : mRequestHeaders.entrySet()) {
+                request.append(header.getKey()).append(": ").append(header.getValue())
+                        .append("\r\n");
+            }
+            request.append("Connection: close\r\n");
+            if (offset > 0) {
+                request.append("Range: bytes=").append(offset).append("-\r\n");
+            }
+            request.append("\r\n");
+            ByteBuffer out = ByteBuffer.wrap(
+                    request.toString().getBytes(StandardCharsets.US_ASCII));
+            while (out.hasRemaining()) {
+                if (mChannel.write(out) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+
+            // Start with an empty buffer in read mode
+            mBuffer.clear();
+            mBuffer.flip();
+            return readResponseHeader();
+        }
+
+        private int readResponseHeader() throws IOException {
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            final int statusCode;
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+
+            mHeaderFields.clear();
+            for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                int separator = line.indexOf(':');
+                if (separator <= 0) {
+                    Log.d(TAG, "Ignoring header " + line);
+                    continue;
+                }
+                String name = line.substring(0, separator).trim();
+                List<String> values = mHeaderFields.get(name);
+                if (values == null) {
+                    values = new ArrayList<>(1);
+                    mHeaderFields.put(name, values);
+                }
+                values.add(line.substring(separator + 1).trim());
+            }
+            return statusCode;
+        }
+
+        /**
+         * Read more data into the buffer, keeping the bytes not consumed yet
+         *
+         * @return the number of bytes read, or -1 at the end of the stream
+         */
+        private int fill() throws IOException {
+            mBuffer.compact();
+            int count;
+            while ((count = mChannel.read(mBuffer)) == 0) {
+                await(SelectionKey.OP_READ);
+            }
+            mBuffer.flip();
+            return count;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                while (mBuffer.hasRemaining()) {
+                    char c = (char) (mBuffer.get() & 0xff);
+                    if (c == '\n') {
+                        int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\r') {
+                            line.setLength(length - 1);
+                        }
+                        return line.toString();
+                    }
+                    if (line.length() >= MAX_LINE_LENGTH) {
+                        throw new IOException("Line too long");
+                    }
+                    line.append(c);
+                }
+                if (fill() < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+            }
+        }
+
+        private long readChunkSize(boolean firstChunk) throws IOException {
+            if (!firstChunk && !readLine().isEmpty()) {
+                throw new IOException("Invalid chunk terminator");
+            }
+            String line = readLine();
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+            final long size;
+            try {
+                size = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (size == 0) {
+                // Skip the trailers
+                while (!readLine().isEmpty()) {
+                }
+            }
+            return size;
+        }
+
+        private void writeBody(DownloadFile out, long contentLength, boolean chunked)
+                throws IOException {
+            // -1 means until the server closes the connection
+            long remaining = chunked ? 0 : contentLength;
+            boolean firstChunk = true;
+            while (!isInterrupted()) {
+                if (chunked && remaining == 0) {
+                    remaining = readChunkSize(firstChunk);
+                    firstChunk = false;
+                    if (remaining == 0) {
+                        return;
+                    }
+                } else if (remaining == 0) {
+                    return;
+                }
+
+                if (!mBuffer.hasRemaining()) {
+                    if (fill() < 0) {
+                        if (remaining > 0) {
+                            throw new IOException("Unexpected end of stream");
+                        }
+                        return;
+                    }
+                    continue;
+                }
+
+                int count = remaining < 0 ? mBuffer.remaining() :
+                        (int) Math.min(mBuffer.remaining(), remaining);
+                int limit = mBuffer.limit();
+                mBuffer.limit(mBuffer.position() + count);
+                out.write(mBuffer, mTotalBytesRead);
+                mBuffer.limit(limit);
+
+                if (remaining > 0) {
+                    remaining -= count;
+                }
+                mTotalBytesRead += count;
+                if (mThrottle != null) {
+                    mThrottle.onBytesRead(count);
+                }
+                checkStall();
+                calculateSpeed();
+                calculateEta();
+                if (mProgressListener != null) {
+                    mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mThrottle != null) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            mBuffer = ByteBuffer.allocateDirect(mBufferSize);
+            int retries = 0;
+            try {
+                while (true) {
+                    try {
+                        download();
+                        return;
+                    } catch (IOException e) {
+                        if (isInterrupted() || retries >= MAX_RETRIES ||
+                                e instanceof DownloadFile.OutOfSpaceException) {
+                            Log.e(TAG, "Error downloading file", e);
+                            mCallback.onFailure(isInterrupted());
+                            return;
+                        }
+                        closeChannel();
+                        long delay = getRetryDelay(retries++);
+                        Log.e(TAG, "Error downloading file, retrying in " + delay + " ms", e);
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ie) {
+                            mCallback.onFailure(true);
+                            return;
+                        }
+                        // Continue from what has been written so far
+                        mResume = mTotalBytesRead > 0;
+                    }
+                }
+            } finally {
+                closeChannel();
+                closeSelector();
+            }
+        }
+
+        private void download() throws IOException {
+            final long offset = mTotalBytesRead;
+            URL url = mUrl;
+            int responseCode = sendRequest(url, offset);
+            for (int redirects = 0; isRedirectCode(responseCode); redirects++) {
+                String location = new Headers().get("Location");
+                if (location == null) {
+                    break;
+                } else if (redirects == MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects");
+                }
+                URL newUrl = new URL(url, location);
+                if (!newUrl.getProtocol().equals(url.getProtocol())) {
+                    throw new IOException("Protocol changes are not allowed");
+                }
+                url = newUrl;
+                Log.d(TAG, "Downloading from " + url);
+                responseCode = sendRequest(url, offset);
+            }
+
+            mCallback.onResponse(responseCode, url.toString(), new Headers());
+
+            if (mResume && isPartialContentCode(responseCode)) {
+                Log.d(TAG, "The server fulfilled the partial content request");
+            } else if (mResume || !isSuccessCode(responseCode)) {
+                Log.e(TAG, "The server replied with code " + responseCode);
+                mCallback.onFailure(isInterrupted());
+                return;
+            }
+
+            Headers headers = new Headers();
+            boolean chunked = "chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"));
+            long contentLength = -1;
+            String contentLengthHeader = headers.get("Content-Length");
+            if (!chunked && contentLengthHeader != null) {
+                try {
+                    contentLength = Long.parseLong(contentLengthHeader);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid content length " + contentLengthHeader);
+                }
+            }
+
+            try (DownloadFile outputFile = new DownloadFile(mDestination, !mResume)) {
+                mTotalBytes = contentLength + mTotalBytesRead;
+                mStallCheckMillis = SystemClock.elapsedRealtime();
+                mStallCheckBytes = mTotalBytesRead;
+                if (mPreallocate) {
+                    outputFile.preallocate(contentLength >= 0 ? mTotalBytes : mExpectedSize);
+                }
+                writeBody(outputFile, contentLength, chunked);
+                if (mProgressListener != null) {
+                    mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
+                }
+
+                if (isInterrupted()) {
+                    mCallback.onFailure(true);
+                } else {
+                    outputFile.finish(mTotalBytesRead);
+                    mCallback.onSuccess(mDestination);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the speed estimators on the throughput traces in tests/res/speed_traces.
+ * A trace has one "time_ms bytes" line per completed read.
+ */
+public class SpeedEstimatorTest {
+
+    private static final long MB = 1000 * 1000;
+
+    private static final SpeedEstimator.Model[] MODELS = SpeedEstimator.Model.values();
+
+    @Test
+    public void unknownUntilEnoughSamples() {
+        for (SpeedEstimator.Model model : MODELS) {
+            SpeedEstimator estimator = SpeedEstimator.create(model);
+            assertEquals(-1, estimator.getSpeed());
+            estimator.addSample(0, 1000);
+            estimator.addSample(1000, 1100);
+            assertEquals(model.name(), -1, estimator.getSpeed());
+            assertEquals(-1, SpeedEstimator.getEta(estimator, 1000));
+        }
+    }
+
+    @Test
+    public void steadyLink() throws IOException {
+        long[][] trace = readTrace("steady_wifi.txt");
+        for (SpeedEstimator.Model model : MODELS) {
+            // Within 10% once past the first few seconds
+            assertWithin(model, trace, 5000, trace.length, 4 * MB, 0.1);
+        }
+    }
+
+    @Test
+    public void burstyLinkWindowedPercentile() throws IOException {
+        long[][] trace = readTrace("mobile_bursty.txt");
+        // Bursts and stalls don't move the median of the window
+        assertWithin(SpeedEstimator.Model.WINDOWED_PERCENTILE, trace, 20000, trace.length,
+                1 * MB, 0.3);
+        // While they move the average way more
+        assertTrue(maxDeviation(SpeedEstimator.Model.TIME_WEIGHTED_EMA, trace, 20000, 1 * MB) >
+                2 * maxDeviation(SpeedEstimator.Model.WINDOWED_PERCENTILE, trace, 20000, 1 * MB));
+    }
+
+    @Test
+    public void networkChange() throws IOException {
+        long[][] trace = readTrace("network_change.txt");
+        for (SpeedEstimator.Model model : MODELS) {
+            assertWithin(model, trace, 10000, indexOf(trace, 30000), 4 * MB, 0.15);
+            // Adapted to the slower network within 30 seconds
+            assertWithin(model, trace, 60000, trace.length, MB / 2, 0.25);
+        }
+        // The median flips once half of the window is slower
+        assertWithin(SpeedEstimator.Model.WINDOWED_PERCENTILE, trace, 45000, trace.length,
+                MB / 2, 0.25);
+    }
+
+    @Test
+    public void eta() throws IOException {
+        long[][] trace = readTrace("steady_wifi.txt");
+        for (SpeedEstimator.Model model : MODELS) {
+            SpeedEstimator estimator = run(model, trace, trace.length);
+            long eta = SpeedEstimator.getEta(estimator, 400 * MB);
+            assertTrue(model + " eta " + eta, eta >= 90 && eta <= 110);
+            assertEquals(0, SpeedEstimator.getEta(estimator, 0));
+            assertEquals(-1, SpeedEstimator.getEta(estimator, -1));
+        }
+    }
+
+    @Test
+    public void getModel() {
+        assertEquals(SpeedEstimator.Model.WINDOWED_PERCENTILE,
+                SpeedEstimator.getModel("windowed_percentile"));
+        assertEquals(SpeedEstimator.Model.TIME_WEIGHTED_EMA,
+                SpeedEstimator.getModel("time_weighted_ema"));
+        assertEquals(SpeedEstimator.Model.TIME_WEIGHTED_EMA, SpeedEstimator.getModel("unknown"));
+        assertEquals(SpeedEstimator.Model.TIME_WEIGHTED_EMA, SpeedEstimator.getModel(null));
+    }
+
+    /**
+     * Check the estimate after each sample between from, a time, and to, an index
+     */
+    private static void assertWithin(SpeedEstimator.Model model, long[][] trace, long from,
+            int to, long expected, double tolerance) {
+        SpeedEstimator estimator = SpeedEstimator.create(model);
+        for (int i = 0; i < to; i++) {
+            estimator.addSample(trace[i][1], trace[i][0]);
+            if (trace[i][0] >= from) {
+                long speed = estimator.getSpeed();
+                assertTrue(model + " estimated " + speed + " at " + trace[i][0] + " ms",
+                        Math.abs(speed - expected) <= expected * tolerance);
+            }
+        }
+    }
+
+    private static double maxDeviation(SpeedEstimator.Model model, long[][] trace, long from,
+            long expected) {
+        SpeedEstimator estimator = SpeedEstimator.create(model);
+        double max = 0;
+        for (long[] sample : trace) {
+            estimator.addSample(sample[1], sample[0]);
+            if (sample[0] >= from) {
+                max = Math.max(max, Math.abs(estimator.getSpeed() - expected) /
+                        (double) expected);
+            }
+        }
+        return max;
+    }
+
+    private static SpeedEstimator run(SpeedEstimator.Model model, long[][] trace, int count) {
+        SpeedEstimator estimator = SpeedEstimator.create(model);
+        for (int i = 0; i < count; i++) {
+            estimator.addSample(trace[i][1], trace[i][0]);
+        }
+        return estimator;
+    }
+
+    private static int indexOf(long[][] trace, long timeMillis) {
+        for (int i = 0; i < trace.length; i++) {
+            if (trace[i][0] >= timeMillis) {
+                return i;
+            }
+        }
+        return trace.length;
+    }
+
+    private static long[][] readTrace(String name) throws IOException {
+        List<long[]> samples = new ArrayList<>();
+        try (InputStream in = SpeedEstimatorTest.class.getResourceAsStream(
+                "/speed_traces/" + name)) {
+            assertNotNull("Missing trace " + name, in);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+");
+                samples.add(new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) });
+            }
+        }
+        return samples.toArray(new long[0][]);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.lineageos.updater.PerfBaseline;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileUtilsPerfTest {
+
+    private static final int ZIP_ENTRIES = 10_000;
+    private static final int COPY_SIZE = 64 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void zipEntryOffset() throws Exception {
+        File file = mFolder.newFile("update.zip");
+        writeZip(file);
+        // The payload is the last entry, like in A/B packages
+        String entryPath = "payload.bin";
+        try (ZipFile zipFile = new ZipFile(file)) {
+            AtomicLong offset = new AtomicLong();
+            PerfBaseline.check("zip_entry_offset_10k", () ->
+                    offset.set(Utils.getZipEntryOffset(zipFile, entryPath)));
+
+            byte[] expected = entryData(entryPath);
+            byte[] actual = new byte[expected.length];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(offset.get());
+                raf.readFully(actual);
+            }
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void copyFile() throws Exception {
+        File source = createRandomFile();
+        File destination = new File(mFolder.getRoot(), "copy");
+        PerfBaseline.check("copy_file_64m", () -> FileUtils.copyFile(source, destination));
+        assertEquals(checksum(source), checksum(destination));
+    }
+
+    @Test
+    public void copyFileWithProgress() throws Exception {
+        File source = createRandomFile();
+        File destination = new File(mFolder.getRoot(), "copy");
+        AtomicInteger progress = new AtomicInteger();
+        PerfBaseline.check("copy_file_progress_64m", () -> FileUtils.copyFile(source,
+                destination, progress::set));
+        assertEquals(100, progress.get());
+        assertEquals(checksum(source), checksum(destination));
+    }
+
+    private void writeZip(File file) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)))) {
+            for (int i = 0; i <= ZIP_ENTRIES; i++) {
+                String name = i < ZIP_ENTRIES ? "META-INF/entry-" + i : "payload.bin";
+                byte[] data = entryData(name);
+                // Stored entries, so that the data at the offset can be compared
+                ZipEntry entry = new ZipEntry(name);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                entry.setCrc(crc.getValue());
+                out.putNextEntry(entry);
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] entryData(String name) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            data.append(name).append('\n');
+        }
+        return data.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File createRandomFile() throws IOException {
+        File file = mFolder.newFile();
+        Random random = new Random(0);
+        byte[] buffer = new byte[1024 * 1024];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int written = 0; written < COPY_SIZE; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer);
+            }
+        }
+        return file;
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1024 * 1024];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int count;
+            while ((count = raf.read(buffer)) > 0) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        return crc.getValue();
+    }
+}
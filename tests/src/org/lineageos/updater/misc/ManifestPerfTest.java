@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.lineageos.updater.PerfBaseline;
+import org.lineageos.updater.model.IncrementalPackage;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(RobolectricTestRunner.class)
+public class ManifestPerfTest {
+
+    private static final int LARGE = 100_000;
+    // A binary manifest holds at most 64k updates
+    private static final int LARGE_BINARY = 60_000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void parseJson1k() throws Exception {
+        checkParseJson("parse_json_1k", 1_000, false);
+    }
+
+    @Test
+    public void parseJson10k() throws Exception {
+        checkParseJson("parse_json_10k", 10_000, false);
+    }
+
+    @Test
+    public void parseJson100k() throws Exception {
+        checkParseJson("parse_json_100k", LARGE, false);
+    }
+
+    @Test
+    public void parseJsonGzip100k() throws Exception {
+        checkParseJson("parse_json_gzip_100k", LARGE, true);
+    }
+
+    @Test
+    public void parseBinary1k() throws Exception {
+        checkParseBinary("parse_binary_1k", 1_000);
+    }
+
+    @Test
+    public void parseBinary10k() throws Exception {
+        checkParseBinary("parse_binary_10k", 10_000);
+    }
+
+    @Test
+    public void parseBinary60k() throws Exception {
+        checkParseBinary("parse_binary_60k", LARGE_BINARY);
+    }
+
+    @Test
+    public void parseBinaryThroughUtils() throws Exception {
+        File file = mFolder.newFile();
+        SyntheticManifests.writeBinary(file, 1_000, true);
+        List<UpdateInfo> updates = Utils.parseJson(file, false, null);
+        assertEquals(1_000, updates.size());
+        assertUpdate(updates, 999);
+        assertEquals(3600 * 1000, Utils.getMinCheckInterval(file));
+    }
+
+    @Test
+    public void diff100k() throws Exception {
+        List<UpdateInfo> previous = SyntheticManifests.createUpdates(LARGE);
+        Map<String, Long> fingerprints = ManifestDiff.getFingerprints(previous);
+
+        // Drop the oldest 1%, change 1% of the others and add 1% of new updates
+        List<UpdateInfo> updates = SyntheticManifests.createUpdates(LARGE + LARGE / 100);
+        List<UpdateInfo> current = new ArrayList<>(updates.subList(LARGE / 100, updates.size()));
+        int changed = 0;
+        for (int i = 0; i < LARGE - LARGE / 100; i += 100) {
+            Update update = (Update) current.get(i);
+            update.setDownloadUrl(update.getDownloadUrl() + "?mirror=2");
+            changed++;
+        }
+
+        AtomicReference<ManifestDiff> result = new AtomicReference<>();
+        PerfBaseline.check("diff_100k", () -> result.set(ManifestDiff.compute(fingerprints,
+                current)));
+        ManifestDiff diff = result.get();
+        assertEquals(LARGE / 100, diff.getAdded().size());
+        assertEquals(LARGE / 100, diff.getRemoved().size());
+        assertEquals(changed, diff.getChanged().size());
+        assertEquals(LARGE, diff.getIds().size());
+        assertTrue(diff.hasNewUpdates());
+        assertTrue(diff.isUnchanged(SyntheticManifests.downloadId(LARGE / 100 + 1)));
+    }
+
+    @Test
+    public void fingerprintsRoundTrip100k() throws Exception {
+        List<UpdateInfo> updates = SyntheticManifests.createUpdates(LARGE);
+        ManifestDiff diff = ManifestDiff.compute(null, updates);
+        File file = new File(mFolder.getRoot(), "updates.fingerprints");
+
+        AtomicReference<Map<String, Long>> read = new AtomicReference<>();
+        PerfBaseline.check("fingerprints_round_trip_100k", () -> {
+            assertTrue(diff.writeFingerprints(file));
+            read.set(ManifestDiff.readFingerprints(file));
+        });
+        assertEquals(ManifestDiff.getFingerprints(updates), read.get());
+        assertTrue(ManifestDiff.compute(read.get(), updates).isUnchanged(
+                SyntheticManifests.downloadId(LARGE - 1)));
+    }
+
+    @Test
+    public void missingFingerprints() {
+        assertNull(ManifestDiff.readFingerprints(new File(mFolder.getRoot(), "missing")));
+    }
+
+    private void checkParseJson(String name, int count, boolean gzip) throws Exception {
+        File file = mFolder.newFile();
+        SyntheticManifests.writeJson(file, count, gzip);
+        AtomicReference<List<UpdateInfo>> parsed = new AtomicReference<>();
+        PerfBaseline.check(name, () -> parsed.set(Utils.parseJson(file, false, null)));
+        List<UpdateInfo> updates = parsed.get();
+        assertEquals(count, updates.size());
+        assertUpdate(updates, 0);
+        assertUpdate(updates, count - 1);
+        assertEquals(ManifestDiff.getFingerprints(SyntheticManifests.createUpdates(count)),
+                ManifestDiff.getFingerprints(updates));
+    }
+
+    private void checkParseBinary(String name, int count) throws Exception {
+        File file = mFolder.newFile();
+        SyntheticManifests.writeBinary(file, count, false);
+        AtomicReference<BinaryManifest> parsed = new AtomicReference<>();
+        PerfBaseline.check(name, () -> {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                parsed.set(BinaryManifest.parse(in));
+            }
+        });
+        List<UpdateInfo> updates = parsed.get().getUpdates();
+        assertEquals(count, updates.size());
+        assertEquals(3600, parsed.get().getMinCheckInterval());
+        assertUpdate(updates, count - 1);
+        assertEquals(ManifestDiff.getFingerprints(SyntheticManifests.createUpdates(count)),
+                ManifestDiff.getFingerprints(updates));
+    }
+
+    private static void assertUpdate(List<UpdateInfo> updates, int index) {
+        UpdateInfo update = updates.get(index);
+        assertEquals(SyntheticManifests.downloadId(index), update.getDownloadId());
+        assertEquals(SyntheticManifests.name(index), update.getName());
+        assertEquals(SyntheticManifests.buildDate(index), update.getTimestamp());
+        assertEquals(SyntheticManifests.size(index), update.getFileSize());
+        List<IncrementalPackage> expected = SyntheticManifests.incrementals(index);
+        assertEquals(expected.size(), update.getIncrementals().size());
+        for (int i = 0; i < expected.size(); i++) {
+            IncrementalPackage incremental = update.getIncrementals().get(i);
+            assertEquals(expected.get(i).getDownloadId(), incremental.getDownloadId());
+            assertEquals(expected.get(i).getSourceIncremental(),
+                    incremental.getSourceIncremental());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.lineageos.updater.model.IncrementalPackage;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Deterministic updates lists of any size, as json, as binary manifest and as
+ * UpdateInfo objects. Every fourth update has two incremental packages.
+ */
+public final class SyntheticManifests {
+
+    private static final long BASE_BUILD_DATE = 1640995200L;
+    private static final long MIN_CHECK_INTERVAL = 3600;
+
+    private SyntheticManifests() {
+    }
+
+    public static String downloadId(int index) {
+        return String.format(Locale.ROOT, "%032x", index);
+    }
+
+    static long buildDate(int index) {
+        return BASE_BUILD_DATE + index * 86400L;
+    }
+
+    static String name(int index) {
+        return "lineage-19.1-" + index + "-nightly-device-signed.zip";
+    }
+
+    static String url(String name) {
+        return "https://mirror.example.com/full/" + name;
+    }
+
+    static long size(int index) {
+        return 900_000_000L + index;
+    }
+
+    static List<IncrementalPackage> incrementals(int index) {
+        if (index % 4 != 0) {
+            return Collections.emptyList();
+        }
+        List<IncrementalPackage> incrementals = new ArrayList<>(2);
+        for (int source = 1; source <= 2; source++) {
+            String name = "lineage-19.1-" + (index - source) + "-to-" + index + "-signed.zip";
+            incrementals.add(new IncrementalPackage(buildDate(index - source),
+                    "eng.build." + (index - source), name,
+                    String.format(Locale.ROOT, "%016x%016x", index, source),
+                    "https://mirror.example.com/incremental/" + name,
+                    size(index) / 10 + source));
+        }
+        return incrementals;
+    }
+
+    public static List<UpdateInfo> createUpdates(int count) {
+        List<UpdateInfo> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Update update = new Update();
+            update.setTimestamp(buildDate(i));
+            update.setName(name(i));
+            update.setDownloadId(downloadId(i));
+            update.setType("nightly");
+            update.setFileSize(size(i));
+            update.setDownloadUrl(url(name(i)));
+            update.setVersion("19.1");
+            update.setIncrementals(incrementals(i));
+            updates.add(update);
+        }
+        return updates;
+    }
+
+    public static void writeJson(File file, int count, boolean gzip) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                open(file, gzip), StandardCharsets.UTF_8))) {
+            out.write("{\"min_check_interval\":" + MIN_CHECK_INTERVAL + ",\"results\":[");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write("{\"build_date\":" + buildDate(i) +
+                        ",\"filename\":\"" + name(i) +
+                        "\",\"md5\":\"" + downloadId(i) +
+                        "\",\"build_type\":\"nightly\",\"size\":" + size(i) +
+                        ",\"url\":\"" + url(name(i)) +
+                        "\",\"version\":\"19.1\",\"incrementals\":[");
+                List<IncrementalPackage> incrementals = incrementals(i);
+                for (int j = 0; j < incrementals.size(); j++) {
+                    IncrementalPackage incremental = incrementals.get(j);
+                    if (j > 0) {
+                        out.write(',');
+                    }
+                    out.write("{\"source_build_date\":" + incremental.getSourceTimestamp() +
+                            ",\"source_incremental\":\"" + incremental.getSourceIncremental() +
+                            "\",\"filename\":\"" + incremental.getName() +
+                            "\",\"md5\":\"" + incremental.getDownloadId() +
+                            "\",\"url\":\"" + incremental.getDownloadUrl() +
+                            "\",\"size\":" + incremental.getFileSize() + "}");
+                }
+                out.write("]}");
+            }
+            out.write("]}");
+        }
+    }
+
+    public static void writeBinary(File file, int count, boolean gzip) throws IOException {
+        try (OutputStream out = open(file, gzip)) {
+            out.write(new byte[] { 'U', 'P', 'D', 'M', 1 });
+            writeVarLong(out, MIN_CHECK_INTERVAL);
+            writeVarLong(out, count);
+            for (int i = 0; i < count; i++) {
+                writeVarLong(out, buildDate(i));
+                writeString(out, name(i));
+                writeString(out, downloadId(i));
+                writeString(out, "nightly");
+                writeVarLong(out, size(i));
+                writeString(out, url(name(i)));
+                writeString(out, "19.1");
+                List<IncrementalPackage> incrementals = incrementals(i);
+                writeVarLong(out, incrementals.size());
+                for (IncrementalPackage incremental : incrementals) {
+                    writeVarLong(out, incremental.getSourceTimestamp());
+                    writeString(out, incremental.getSourceIncremental());
+                    writeString(out, incremental.getName());
+                    writeString(out, incremental.getDownloadId());
+                    writeString(out, incremental.getDownloadUrl());
+                    writeVarLong(out, incremental.getFileSize());
+                }
+            }
+        }
+    }
+
+    private static OutputStream open(File file, boolean gzip) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        return gzip ? new GZIPOutputStream(out) : out;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+}
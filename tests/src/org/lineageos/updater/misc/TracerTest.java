@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays the Tracer calls made by UpdaterController and the installers.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TracerTest {
+
+    private static final String ID = "update";
+
+    private Tracer.BufferRecorder mRecorder;
+
+    @Before
+    public void setUp() {
+        mRecorder = new Tracer.BufferRecorder();
+        Tracer.setRecorder(mRecorder);
+    }
+
+    @After
+    public void tearDown() {
+        Tracer.setRecorder(new Tracer.SystraceRecorder());
+    }
+
+    @Test
+    public void sequentialUpdate() {
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.endStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_VERIFY);
+        Tracer.endStage(ID, Tracer.STAGE_VERIFY);
+        Tracer.beginStage(ID, Tracer.STAGE_INSTALL);
+        Tracer.endFinalStage(ID, Tracer.STAGE_INSTALL);
+
+        assertEquals(Arrays.asList(
+                "+Updater:update",
+                "+Updater:update/download",
+                "-Updater:update/download",
+                "+Updater:update/verify",
+                "-Updater:update/verify",
+                "+Updater:update/install",
+                "-Updater:update/install",
+                "-Updater:update"), getEvents());
+    }
+
+    @Test
+    public void pipelinedUpdateInstalledBeforeVerification() {
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_INSTALL);
+        Tracer.endStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_VERIFY);
+        // The installation completes while the package is being verified
+        Tracer.endFinalStage(ID, Tracer.STAGE_INSTALL);
+        Tracer.endFinalStage(ID, Tracer.STAGE_VERIFY);
+
+        assertEquals(Arrays.asList(
+                "+Updater:update",
+                "+Updater:update/download",
+                "+Updater:update/install",
+                "-Updater:update/download",
+                "+Updater:update/verify",
+                "-Updater:update/install",
+                "-Updater:update/verify",
+                "-Updater:update"), getEvents());
+    }
+
+    @Test
+    public void pipelinedUpdateVerifiedBeforeInstallation() {
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_INSTALL);
+        Tracer.endStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_VERIFY);
+        Tracer.endFinalStage(ID, Tracer.STAGE_VERIFY);
+        Tracer.endFinalStage(ID, Tracer.STAGE_INSTALL);
+
+        assertEquals(Arrays.asList(
+                "+Updater:update",
+                "+Updater:update/download",
+                "+Updater:update/install",
+                "-Updater:update/download",
+                "+Updater:update/verify",
+                "-Updater:update/verify",
+                "-Updater:update/install",
+                "-Updater:update"), getEvents());
+    }
+
+    @Test
+    public void pipelinedInstallationFailed() {
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_INSTALL);
+        // The download keeps going
+        Tracer.endFinalStage(ID, Tracer.STAGE_INSTALL);
+        Tracer.endStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_VERIFY);
+        Tracer.endFinalStage(ID, Tracer.STAGE_VERIFY);
+
+        assertEquals(Arrays.asList(
+                "+Updater:update",
+                "+Updater:update/download",
+                "+Updater:update/install",
+                "-Updater:update/install",
+                "-Updater:update/download",
+                "+Updater:update/verify",
+                "-Updater:update/verify",
+                "-Updater:update"), getEvents());
+    }
+
+    @Test
+    public void endUpdateEndsRunningStages() {
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_INSTALL);
+        Tracer.endUpdate(ID);
+        Tracer.endStage(ID, Tracer.STAGE_DOWNLOAD);
+
+        assertEquals(Arrays.asList(
+                "+Updater:update",
+                "+Updater:update/download",
+                "+Updater:update/install",
+                "-Updater:update/download",
+                "-Updater:update/install",
+                "-Updater:update"), getEvents());
+    }
+
+    @Test
+    public void spansMatchByCookie() {
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.endStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.beginStage(ID, Tracer.STAGE_DOWNLOAD);
+        Tracer.endUpdate(ID);
+
+        List<Tracer.BufferRecorder.Event> events = mRecorder.getEvents();
+        assertEquals(events.get(1).cookie, events.get(2).cookie);
+        assertEquals(events.get(3).cookie, events.get(4).cookie);
+        assertEquals(events.get(0).cookie, events.get(5).cookie);
+    }
+
+    private List<String> getEvents() {
+        List<String> events = new ArrayList<>();
+        for (Tracer.BufferRecorder.Event event : mRecorder.getEvents()) {
+            events.add((event.begin ? "+" : "-") + event.name);
+        }
+        return events;
+    }
+}